@@ -1,9 +1,8 @@
 package dfa;
 
 import js.base.BaseObject;
-import js.base.Pair;
 
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -13,10 +12,11 @@ import static dfa.Util.*;
 
 public class BinaryOper extends BaseObject {
 
-  // 'OR' is not useful, as the alternation operator '|' serves this purpose already.
+  // 'OR' produces the same language as the alternation operator '|', but as a (deterministic)
+  // product; 'XOR' is the symmetric difference.
   //
   public enum OperationCode {
-    AND, MINUS,
+    AND, MINUS, OR, XOR,
   }
 
   public static NFA aMinusB(NFA a, NFA b) {
@@ -29,184 +29,119 @@ public class BinaryOper extends BaseObject {
     return oper.result();
   }
 
-  private static long encodeFactorIds(int a, int b) {
-    checkArgument(a > 0 && b > 0);
-    return a | (((long) b) << 32);
-  }
-
-  private static int factorAId(long encoded) {
-    return (int) encoded;
-  }
-
-  private static int factorBId(long encoded) {
-    return (int) (encoded >> 32);
-  }
-
-
-  // Maps product ids to encoded pair of factor ids
-  //
-  private Map<Integer, Long> mProductIdToFactorIdPairMap = hashMap();
-
-  // Maps state ids to states
-  //
-  private Map<Integer, State> mStateIdToStateMap = hashMap();
-
-  // Stack of unexamined product states
-  //
-  private List<State> mSearchFrontier = arrayList();
-
-  // Map of encoded pair of factor ids to product state
-  private Map<Long, State> mFactorIdPairToProductStateMap = hashMap();
-
-  private void extendFrontier(State state) {
-    mSearchFrontier.add(state);
-  }
-
-  private State popFrontier() {
-    return pop(mSearchFrontier);
-  }
-
-  private Pair<State, State> getFactorStates(State productState) {
-    var encoded = encodedFactorIdPairForProductState(productState);
-    if (false)
-      log("encoded id pair for product state:", productState.id(), idPairToStr(encoded));
-    return pair(stateWithId(factorAId(encoded)), stateWithId(factorBId(encoded)));
+  public static NFA aOrB(NFA a, NFA b) {
+    var oper = new BinaryOper(a, b, OperationCode.OR);
+    return oper.result();
   }
 
-  private long encodedFactorIdPairForProductState(State productState) {
-    var encoded = mProductIdToFactorIdPairMap.get(productState.id());
-    checkNotNull(encoded, "can't find product state in factor ids map:", productState.id());
-    return encoded;
+  public static NFA aXorB(NFA a, NFA b) {
+    var oper = new BinaryOper(a, b, OperationCode.XOR);
+    return oper.result();
   }
 
-  private State stateWithId(int id) {
-    var state = mStateIdToStateMap.get(id);
-    checkNotNull(state, "no state found for id:", id);
-    return state;
+  /**
+   * Construct the complement of an NFA, i.e., one that accepts every string
+   * (of codes from CodeSet.ALL) that the NFA doesn't
+   */
+  public static NFA complement(NFA a) {
+    var oper = new BinaryOper(universalNFA(a.start.factory()), a, OperationCode.MINUS);
+    return oper.result();
   }
 
-  private void addStatesToMap(Collection<State> states) {
-    for (var s : states) {
-      mStateIdToStateMap.put(s.id(), s);
-    }
+  /**
+   * Construct an NFA that accepts every string of codes from CodeSet.ALL
+   */
+  private static NFA universalNFA(StateFactory factory) {
+    State start = factory.newState();
+    State end = factory.newState();
+    addEdge(start, CodeSet.ALL, start);
+    addEps(start, end);
+    return nfa(start, end);
   }
 
-  private BinaryOper(NFA a, NFA b, OperationCode oper) {
+  BinaryOper(NFA a, NFA b, OperationCode oper) {
     mA = a;
     mB = b;
     mOper = oper;
+    mFactory = a.start.factory();
   }
 
   private OperationCode mOper;
+  private StateFactory mFactory;
 
   private NFA mA, mB;
   private NFA mResult;
+  private int mPrunedStateCount;
 
+  /**
+   * Construct the product of the two operands.
+   *
+   * Rather than converting each operand to a (minimal) DFA beforehand, the
+   * operands are determinized lazily: a subset of an operand's NFA states is
+   * only constructed when a product state involving it is discovered
+   */
   public NFA result() {
     if (mResult != null) return mResult;
 
-    var a = mA;
-    var b = mB;
-
-    var a2 = toDFA(a);
-    var b2 = toDFA(b);
-
-    // Add all the states of the two DFAs to the state map
-    addStatesToMap(a2.states);
-    addStatesToMap(b2.states);
-
-    // Partition the edge labels into disjoint codesets,
-    // and construct new versions of the reachable states
+    // Partition the edge labels of both operands into disjoint codesets,
+    // and replace the existing edges with partitioned versions
 
+    var aStates = reachableStates(mA.start);
+    var bStates = reachableStates(mB.start);
     var par = new RangePartition();
-
     {
-      par.addStateCodeSets(a2.states);
-      par.addStateCodeSets(b2.states);
-      // Replace existing edges with partitioned versions
-      par.apply(a2.states);
-      par.apply(b2.states);
+      par.addStateCodeSets(aStates);
+      par.addStateCodeSets(bStates);
+      par.apply(aStates);
+      par.apply(bStates);
     }
 
-    // construct the product NFA of these two.
-    var productStart = constructProductState(a2.startState, b2.startState);
-    var productEnd = new State();
-
-    // Initialize frontier to the start state
-    extendFrontier(productStart);
-
-    Set<CodeSet> workCodeSets = hashSet();
-
-    // Ensure that every state has an edge for *every* possible edge label, by
-    // adding edges to the sink state for missing ones.
+    // Assign an index to each (non-epsilon) label in the partition
+    mLabels = arrayList();
+    mLabelIndexMap = hashMap();
+    for (var codeSet : par.getPartition()) {
+      if (codeSet.contains(EPSILON))
+        continue;
+      mLabelIndexMap.put(codeSet, mLabels.size());
+      mLabels.add(codeSet);
+    }
 
-    // This is actually only necessary for the MINUS operation
+    var a = new LazyDFA(mA);
+    var b = new LazyDFA(mB);
 
-    if (mOper == OperationCode.MINUS) {
-      workCodeSets.addAll(par.getPartition());
-    }
+    // construct the product NFA of these two.
+    var productStart = productState(a, b, a.startSubset(), b.startSubset());
+    var productEnd = mFactory.newState();
 
     // Continue searching until the frontier is empty
     //
     while (!mSearchFrontier.isEmpty()) {
-      var productState = popFrontier();
-
-      // Determine the two factor states
-      var factors = getFactorStates(productState);
-      var fa = factors.first;
-      var fb = factors.second;
-
-      // Construct the set of labels that appear in either of the edges.
-      // Construct an edge for each label in the set, sending to the sink state(s) where appropriate.
-
-      // For MINUS, we've preconstructed the set of ALL possible edges.
-      //
-      // For the others, we only want to add those labels that appear on the two edges.
-      //
-      if (mOper != OperationCode.MINUS) {
-        workCodeSets.clear();
-        for (var x : fa.edges()) workCodeSets.add(x.codeSet());
-        for (var x : fb.edges()) workCodeSets.add(x.codeSet());
-      }
-
-      for (var x : workCodeSets) {
-        // determine target states for this label
-        var aTarget = a2.sinkState;
-        for (var y : fa.edges()) {
-          if (x.equals(y.codeSet())) {
-            aTarget = y.destinationState();
-            break;
-          }
-        }
-        var bTarget = b2.sinkState;
-        for (var y : fb.edges()) {
-          if (x.equals(y.codeSet())) {
-            bTarget = y.destinationState();
-            break;
-          }
-        }
-
-        var destProductId = productId(aTarget, bTarget);
-
-        // Look for an existing product state with this id.  If not found,
-        // create one, and add it to the frontier
-
-        var destProductState = mFactorIdPairToProductStateMap.get(destProductId);
-        if (destProductState == null) {
-          destProductState = constructProductState(aTarget, bTarget);
-          mSearchFrontier.add(destProductState);
-        }
-
-        // Add edge to product graph
-
-        var edge = new Edge(x, destProductState);
-        productState.edges().add(edge);
+      var productState = pop(mSearchFrontier);
+      long factors = mProductStateFactorsMap.get(productState);
+      var aMoves = a.moves(factorA(factors));
+      var bMoves = b.moves(factorB(factors));
+
+      for (int label = 0; label < mLabels.size(); label++) {
+        int aTarget = aMoves[label];
+        int bTarget = bMoves[label];
+
+        // Omit edges to product states that can never reach a final state because
+        // one or both of their factors is the empty subset
+        if (!canAccept(aTarget != LazyDFA.EMPTY, bTarget != LazyDFA.EMPTY))
+          continue;
+
+        var destProductState = productState(a, b, aTarget, bTarget);
+        productState.edges().add(new Edge(mLabels.get(label), destProductState));
       }
     }
 
+    // Remove the product states that can never reach a final state,
+    // along with the edges leading to them
+    mPrunedStateCount = pruneNonProductiveStates(productStart);
+
     // for each product state that has been marked as a final state,
     // clear that flag, and add an epsilon edge to the end state
-    for (var productState : mFactorIdPairToProductStateMap.values()) {
+    for (var productState : mFactorsProductStateMap.values()) {
       if (productState.finalState()) {
         productState.setFinal(false);
         productState.edges().add(new Edge(CodeSet.EPSILON, productEnd));
@@ -217,69 +152,182 @@ public class BinaryOper extends BaseObject {
   }
 
   /**
-   * Construct a product state representing two factor states, and add to the appropriate data structures
+   * Get the number of product states that were removed because they couldn't
+   * reach a final state
    */
-  private State constructProductState(State a, State b) {
-    // Set final state according to the binary operation
+  int prunedStateCount() {
+    return mPrunedStateCount;
+  }
+
+  /**
+   * Get the product state representing two factor subsets, constructing it
+   * (and adding it to the search frontier) if it doesn't exist
+   */
+  private State productState(LazyDFA a, LazyDFA b, int aSubset, int bSubset) {
+    long key = encodeFactors(aSubset, bSubset);
+    var state = mFactorsProductStateMap.get(key);
+    if (state == null) {
+      state = mFactory.newState(isFinal(a.isFinal(aSubset), b.isFinal(bSubset)));
+      mFactorsProductStateMap.put(key, state);
+      mProductStateFactorsMap.put(state, key);
+      push(mSearchFrontier, state);
+    }
+    return state;
+  }
 
-    boolean finalState;
+  /**
+   * Set final state according to the binary operation
+   */
+  private boolean isFinal(boolean aFinal, boolean bFinal) {
     switch (mOper) {
       case MINUS:
-        finalState = a.finalState() && !b.finalState();
-        break;
+        return aFinal && !bFinal;
       case AND:
-        finalState = a.finalState() && b.finalState();
-        break;
+        return aFinal && bFinal;
+      case OR:
+        return aFinal || bFinal;
+      case XOR:
+        return aFinal != bFinal;
       default:
         throw notSupported();
     }
+  }
 
-    var abProduct = new State(finalState);
-    var existing = mStateIdToStateMap.put(abProduct.id(), abProduct);
-    checkState(existing == null, "state already in map");
-    var encodedIdPair = encodeFactorIds(a.id(), b.id());
-    mProductIdToFactorIdPairMap.put(abProduct.id(), encodedIdPair);
-    mFactorIdPairToProductStateMap.put(encodedIdPair, abProduct);
-    return abProduct;
+  /**
+   * Determine if a product state can lead to a final state, given which of its
+   * factors are nonempty subsets (an empty subset is never final)
+   */
+  private boolean canAccept(boolean aNonEmpty, boolean bNonEmpty) {
+    return isFinal(aNonEmpty, false) || isFinal(false, bNonEmpty) || isFinal(aNonEmpty, bNonEmpty);
   }
 
-  private static long productId(State a, State b) {
-    var aId = a.id();
-    var bId = b.id();
-    return aId + (((long) bId) << 32L);
+  private static long encodeFactors(int a, int b) {
+    return a | (((long) b) << 32);
   }
 
-  private static String idPairToStr(long encoded) {
-    return String.format("[ %4d | %4d ]", factorAId(encoded), factorBId(encoded));
+  private static int factorA(long encoded) {
+    return (int) encoded;
   }
 
-  /**
-   * Convert NFA to a DFA, and add a sink non-final state
-   */
-  private AugDFA toDFA(NFA nfa) {
-    // We have to make the end state a final state
-    nfa.end.setFinal(true);
-    var xDFA = NFAToDFA.convert(nfa.start);
-    var xAug = new AugDFA(xDFA);
-    return xAug;
+  private static int factorB(long encoded) {
+    return (int) (encoded >> 32);
   }
 
   /**
-   * A bookkeeping class for a DFA that includes a sink state (a non-final state with
-   * no outgoing edges)
+   * An operand NFA that is converted to a DFA on demand, by constructing
+   * subsets of its states (and their moves) as they are needed.
+   *
+   * Each subset is identified by an index; the empty subset (a non-final sink)
+   * is index zero
    */
-  private static class AugDFA {
-
-    AugDFA(State startState) {
-      this.startState = startState;
-      sinkState = new State();
-      // Construct a list of states, including the sink state
-      states = reachableStates(startState);
-      states.add(sinkState);
+  private class LazyDFA {
+
+    static final int EMPTY = 0;
+
+    LazyDFA(NFA nfa) {
+      mEndState = nfa.end;
+      subsetIndex(new State[0]);
+      mStartSubset = subsetIndex(epsClosure(Arrays.asList(nfa.start)));
     }
 
-    State startState;
-    State sinkState;
-    List<State> states;
+    int startSubset() {
+      return mStartSubset;
+    }
+
+    boolean isFinal(int subset) {
+      return mFinalFlags.get(subset);
+    }
+
+    /**
+     * Get the subsets reached from a subset, indexed by label
+     */
+    int[] moves(int subset) {
+      var moves = mMoves.get(subset);
+      if (moves == null) {
+        List<Set<State>> targets = arrayList();
+        for (int i = 0; i < mLabels.size(); i++)
+          targets.add(null);
+        for (var state : mSubsets.get(subset)) {
+          for (var edge : state.edges()) {
+            if (edge.codeSet().contains(EPSILON))
+              continue;
+            int label = mLabelIndexMap.get(edge.codeSet());
+            var t = targets.get(label);
+            if (t == null) {
+              // The sets should be TreeSets, for deterministic results
+              t = treeSet();
+              targets.set(label, t);
+            }
+            t.add(edge.destinationState());
+          }
+        }
+        moves = new int[mLabels.size()];
+        for (int i = 0; i < moves.length; i++) {
+          var t = targets.get(i);
+          if (t != null)
+            moves[i] = subsetIndex(epsClosure(t));
+        }
+        mMoves.set(subset, moves);
+      }
+      return moves;
+    }
+
+    private State[] epsClosure(Iterable<State> states) {
+      Set<State> closure = treeSet();
+      List<State> stack = arrayList();
+      for (var s : states) {
+        if (closure.add(s))
+          push(stack, s);
+      }
+      while (nonEmpty(stack)) {
+        State s = pop(stack);
+        for (Edge edge : s.edges()) {
+          if (edge.contains(EPSILON) && closure.add(edge.destinationState()))
+            push(stack, edge.destinationState());
+        }
+      }
+      return closure.toArray(new State[0]);
+    }
+
+    private int subsetIndex(State[] subset) {
+      var key = new CodeSet();
+      for (var s : subset)
+        key.add(s.id());
+      var index = mSubsetIndexMap.get(key);
+      if (index == null) {
+        index = mSubsets.size();
+        mSubsetIndexMap.put(key, index);
+        mSubsets.add(subset);
+        mMoves.add(null);
+        boolean fin = false;
+        for (var s : subset)
+          if (s == mEndState) {
+            fin = true;
+            break;
+          }
+        mFinalFlags.add(fin);
+      }
+      return index;
+    }
+
+    private final State mEndState;
+    private final int mStartSubset;
+    // Map of NFA state id set => subset index
+    private final Map<CodeSet, Integer> mSubsetIndexMap = hashMap();
+    private final List<State[]> mSubsets = arrayList();
+    private final List<int[]> mMoves = arrayList();
+    private final List<Boolean> mFinalFlags = arrayList();
   }
+
+  private List<CodeSet> mLabels;
+  private Map<CodeSet, Integer> mLabelIndexMap;
+
+  // Stack of unexamined product states
+  //
+  private List<State> mSearchFrontier = arrayList();
+
+  // Map of encoded pair of factor subsets to product state, and its inverse
+  //
+  private Map<Long, State> mFactorsProductStateMap = hashMap();
+  private Map<State, Long> mProductStateFactorsMap = hashMap();
 }
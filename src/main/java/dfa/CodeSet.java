@@ -229,6 +229,16 @@ public final class CodeSet implements Comparable<CodeSet> {
     return mElements;
   }
 
+  /**
+   * Get the number of values in the set
+   */
+  public int size() {
+    int count = 0;
+    for (int i = 0; i < mElements.length; i += 2)
+      count += mElements[i + 1] - mElements[i];
+    return count;
+  }
+
   public boolean isEmpty() {
     return mElements.length == 0;
   }
@@ -8,6 +8,8 @@ import js.parsing.DFA;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import static js.base.Tools.*;
 import static dfa.Util.*;
@@ -27,10 +29,56 @@ class DFABuilder {
     return this;
   }
 
+  /**
+   * Estimates how often an edge will be followed, relative to the other edges
+   */
+  interface EdgeWeights {
+    double weight(State source, Edge edge);
+  }
+
+  /**
+   * Estimates edge frequencies from the codes in their labels (letters and
+   * spaces being more common than other codes), favoring edges that loop
+   */
+  static final EdgeWeights HEURISTIC_WEIGHTS = (source, edge) -> {
+    double w = 0;
+    var cs = edge.labels();
+    for (int i = 0; i < cs.length; i += 2)
+      for (int c = cs[i]; c < cs[i + 1] && c < MAX_CHAR_CODE; c++)
+        w += codeWeight(c);
+    if (edge.destinationState() == source)
+      w *= 4;
+    return w;
+  };
+
+  private static double codeWeight(int c) {
+    if ((c >= 'a' && c <= 'z') || c == ' ')
+      return 4;
+    if ((c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '\n' || c == '\t')
+      return 2;
+    if (c > ' ' && c < 0x7f)
+      return 1;
+    return 0.25;
+  }
+
+  /**
+   * Lay out the graph to improve locality: within each state, edges are stored
+   * in order of decreasing weight (so a scan of the edges usually stops at the
+   * first one); and states are ordered so that each is usually followed by the
+   * destination of its heaviest edge
+   */
+  public DFABuilder withLayout(EdgeWeights weights) {
+    mWeights = weights;
+    return this;
+  }
+
   public DFA build() {
     if (mBuilt != null) return mBuilt;
-    mFirstDebugStateId = states().get(0).id();
-    for (var state : states())
+    mOrderedStates = (mWeights != null) ? layoutStates() : states();
+    mStateIndexMap = hashMap();
+    for (var state : mOrderedStates)
+      mStateIndexMap.put(state, mStateIndexMap.size());
+    for (var state : mOrderedStates)
       addState(state);
 
     convertStateIdsToAddresses();
@@ -48,9 +96,18 @@ class DFABuilder {
     }
 
     mBuilt = new DFA(DFA.VERSION, mTokenNames.toArray(new String[0]), graph);
+    mMetadata = DfaMetadata.analyze(graph);
     return mBuilt;
   }
 
+  /**
+   * Get the metadata describing the built DFA
+   */
+  public DfaMetadata metadata() {
+    build();
+    return mMetadata;
+  }
+
   private static final int ENCODED_STATE_ID_OFFSET = 1_000_000;
 
   private void addState(State s) {
@@ -97,6 +154,8 @@ class DFABuilder {
       }
       g.add(compiledTokenId);
     }
+    if (mWeights != null)
+      filteredEdges = sortedByWeight(s, filteredEdges);
 
     // store edge count
     g.add(filteredEdges.size());
@@ -125,17 +184,64 @@ class DFABuilder {
     }
   }
 
-  private int stateIndex(int debugStateId) {
-    var result = debugStateId - mFirstDebugStateId;
-    checkArgument(result >= 0 && result < states().size(), "can't find state index for:", debugStateId);
-    return result;
+  /**
+   * Get the address of a state within the built graph
+   */
+  public int stateAddress(State s) {
+    build();
+    return mStateAddresses.get(stateIndex(s));
   }
 
   private int stateIndex(State s) {
-    return stateIndex(s.id());
+    var result = mStateIndexMap.get(s);
+    checkArgument(result != null, "can't find state index for:", s.id());
+    return result;
+  }
+
+  /**
+   * Sort edges by decreasing weight; edges with equal weights retain their
+   * order
+   */
+  private List<Edge> sortedByWeight(State source, List<Edge> edges) {
+    List<Edge> sorted = new ArrayList<>(edges);
+    sorted.sort((a, b) -> Double.compare(mWeights.weight(source, b), mWeights.weight(source, a)));
+    return sorted;
+  }
+
+  /**
+   * Order the states by a depth-first search from the start state that follows
+   * the heaviest edges first, so chains of heavy edges are laid out
+   * contiguously. The start state remains first
+   */
+  private List<State> layoutStates() {
+    List<State> ordered = arrayList();
+    Set<State> visited = hashSet();
+    List<State> stack = arrayList();
+    push(stack, states().get(0));
+    while (nonEmpty(stack)) {
+      var s = pop(stack);
+      if (!visited.add(s))
+        continue;
+      ordered.add(s);
+      var edges = sortedByWeight(s, s.edges());
+      // Push the lightest edges first, so the heaviest is popped next
+      for (int i = edges.size() - 1; i >= 0; i--) {
+        var dest = edges.get(i).destinationState();
+        if (!visited.contains(dest))
+          push(stack, dest);
+      }
+    }
+    // Include any states that aren't reachable (e.g. the final state, if only token edges lead to it)
+    for (var s : states())
+      if (!visited.contains(s))
+        ordered.add(s);
+    return ordered;
   }
 
-  private List<State> states() {
+  /**
+   * Get the states, in the order they were supplied
+   */
+  public List<State> states() {
     return mStates;
   }
 
@@ -152,7 +258,7 @@ class DFABuilder {
         var idLow = a - ENCODED_STATE_ID_OFFSET;
         var idHigh = b - ENCODED_STATE_ID_OFFSET;
         checkFitsInByte(idLow, "idLow");
-        var decodedStateIndex = checkFitsInByte(idLow, "idLow") + (checkFitsInByte(idHigh, "idHigh"));
+        var decodedStateIndex = checkFitsInByte(idLow, "idLow") + (checkFitsInByte(idHigh, "idHigh") << 8);
         checkArgument(decodedStateIndex >= 0 && decodedStateIndex < mStateAddresses.size(), "state address list has no value for:", decodedStateIndex);
         var stateAddr = mStateAddresses.get(decodedStateIndex);
         checkArgument(stateAddr >= 0 && stateAddr < 0x1_0000, "state address out of range:", stateAddr);
@@ -186,9 +292,12 @@ class DFABuilder {
   }
 
   private List<State> mStates;
+  private List<State> mOrderedStates;
   private IntArray.Builder mGraph = IntArray.newBuilder();
   private List<Integer> mStateAddresses = arrayList();
   private DFA mBuilt;
-  private Integer mFirstDebugStateId;
+  private DfaMetadata mMetadata;
+  private Map<State, Integer> mStateIndexMap;
+  private EdgeWeights mWeights;
   private List<String> mTokenNames;
 }
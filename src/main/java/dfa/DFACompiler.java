@@ -1,12 +1,16 @@
 package dfa;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import js.base.BaseObject;
 import js.file.Files;
+import js.json.JSList;
 import js.parsing.DFA;
+import js.parsing.Lexeme;
 import js.parsing.Lexer;
 
 import static js.base.Tools.*;
@@ -17,39 +21,155 @@ import static dfa.Util.*;
  */
 public final class DFACompiler extends BaseObject {
 
-  public DFA parse(String script) {
-    mTokenRecords = arrayList();
-    mTokenNameMap = hashMap();
+  /**
+   * Have the DFABuilder order the states and edges to improve locality
+   */
+  public DFACompiler withLayout(boolean layout) {
+    mLayout = layout;
+    return this;
+  }
 
-    // Parse the predefined expressions, and insert those lines before the current ones
-    {
-      var predefExpr = Files.readString(this.getClass(), "predef_expr.txt");
-      parseExpressions(predefExpr);
-    }
+  /**
+   * Tune the DFA to sample text: after compiling it, tokenize the text while
+   * recording how often each state and edge is used, and rebuild it with a
+   * layout based on those counts
+   */
+  public DFACompiler withProfileCorpora(List<byte[]> corpora) {
+    mProfileCorpora = corpora;
+    return this;
+  }
+
+  public DFA parse(String script) {
+    // Start with the (shared) predefined expressions; our states' ids follow theirs,
+    // so the DFA is the same as if we had parsed them ourselves
+    var predefs = predefDefinitions();
+    prepareParse(new StateFactory(predefs.mStateFactory));
+    mTokenNameMap.putAll(predefs.mTokenNameMap);
 
     parseExpressions(script);
 
-    State combined = combineNFAs(mTokenRecords);
-    if (verbose())
-      log(stateMachineToString(combined, "combined regex state machines"));
+    // Construct a DFA for each mode; the default mode's start state must be first
+    List<State> startStates = arrayList();
+    for (var records : modeTokenRecords())
+      startStates.add(buildModeDFA(records));
+    if (startStates.size() > 1)
+      startStates = mergeModes(startStates);
+
+    var bld = createBuilder(mTokenRecords, startStates);
+    var dfa = bld.build();
+    mProfile = null;
+    if (nonEmpty(mProfileCorpora)) {
+      var profile = new DfaProfile(dfa);
+      for (var corpus : mProfileCorpora)
+        profile.record(corpus);
+      mProfile = profile;
+
+      // Build it again, with states corresponding to those of the profiled DFA
+      var tuned = createBuilder(mTokenRecords, startStates);
+      Map<State, Integer> profiledAddresses = hashMap();
+      for (int i = 0; i < tuned.states().size(); i++)
+        profiledAddresses.put(tuned.states().get(i), bld.stateAddress(bld.states().get(i)));
+      tuned.withLayout(profile.edgeWeights(profiledAddresses));
+      bld = tuned;
+      dfa = bld.build();
+      mMetadata = bld.metadata();
+
+      // Encode the frequently visited states densely; the final state stores nothing (its
+      // address is that of the state following it), so omit it
+      Map<Integer, Long> stateHits = hashMap();
+      for (var ent : profiledAddresses.entrySet()) {
+        if (ent.getKey().edges().isEmpty())
+          continue;
+        stateHits.put(tuned.stateAddress(ent.getKey()), profile.stateHits(ent.getValue()));
+      }
+      mMetadata.chooseDenseStates(dfa.graph(), stateHits);
+    } else
+      mMetadata = bld.metadata();
+    mMetadata.setSkipTokenIds(mSkipTokenIds);
+    if (startStates.size() > 1)
+      mMetadata.setModes(modeNames(), modeStartAddresses(bld, startStates), modeSwitches());
+    return dfa;
+  }
 
-    State startState;
-    {
-      startState = NFAToDFA.convert(combined);
-      if (verbose())
-        log(stateMachineToString(startState, "nfa to dfa"));
+  /**
+   * Get the profile recorded for the most recently compiled DFA, or null if
+   * no corpora were given
+   */
+  public DfaProfile profile() {
+    return mProfile;
+  }
 
-      List<String> redundantTokenNames = applyRedundantTokenFilter(mTokenRecords, startState);
-      if (nonEmpty(redundantTokenNames))
-        badArg("Subsumed token(s) found (move them lower down in the .rxp file!):", redundantTokenNames);
-    }
+  /**
+   * Get the total number of states in the DFAs of the modes of the most
+   * recently compiled script, before they were merged (or zero if it has no
+   * modes); for test purposes only
+   */
+  int unmergedStateCount() {
+    return mUnmergedStateCount;
+  }
+
+  /**
+   * Get the number of states remaining after merging the DFAs of the modes
+   * (or zero if there are no modes); for test purposes only
+   */
+  int mergedStateCount() {
+    return mMergedStateCount;
+  }
 
-    var bld = createBuilder(mTokenRecords, startState);
-    return bld.build();
+  /**
+   * Get the metadata for the most recently compiled DFA
+   */
+  public DfaMetadata metadata() {
+    checkState(mMetadata != null, "no DFA has been compiled");
+    return mMetadata;
   }
 
   static boolean sVerbosity;
 
+  private void prepareParse(StateFactory stateFactory) {
+    mTokenRecords = arrayList();
+    mTokenNameMap = hashMap();
+    mStateFactory = stateFactory;
+    mSkipTokenIds = treeSet();
+    mModeTokenIds = new LinkedHashMap<>();
+    mSwitchModes = treeMap();
+    mUnmergedStateCount = 0;
+    mMergedStateCount = 0;
+  }
+
+  /**
+   * Get a compiler holding the parsed predefined expressions. These are parsed
+   * once, and shared by subsequent compilations; they aren't modified, as
+   * references to them are duplicated into each compilation's own states
+   */
+  private static DFACompiler predefDefinitions() {
+    var predefs = sPredefs;
+    if (predefs == null) {
+      synchronized (DFACompiler.class) {
+        predefs = sPredefs;
+        if (predefs == null) {
+          predefs = new DFACompiler();
+          predefs.prepareParse(new StateFactory());
+          predefs.parseExpressions(Files.readString(DFACompiler.class, "predef_expr.txt"));
+          sPredefParseCount++;
+          sPredefs = predefs;
+        }
+      }
+    }
+    return predefs;
+  }
+
+  /**
+   * Get the number of times the predefined expressions have been parsed; for
+   * test purposes only
+   */
+  static int predefParseCount() {
+    return sPredefParseCount;
+  }
+
+  private static volatile DFACompiler sPredefs;
+  private static int sPredefParseCount;
+
   private void parseExpressions(String script) {
     var scanner = new Lexer(getDfa()).withText(script);
     if (sVerbosity) {
@@ -59,6 +179,30 @@ public final class DFACompiler extends BaseObject {
       var exprId = scanner.read(TokenDefinitionParser.T_TOKENID);
       var tokenName = chomp(exprId.text(), ":");
 
+      if (tokenName.equals(SKIP_DEFINITION)) {
+        checkTokenList(scanner, exprId);
+        mSkipTokenIds.addAll(parseTokenList(scanner));
+        continue;
+      }
+      if (tokenName.startsWith(MODE_PREFIX)) {
+        checkTokenList(scanner, exprId);
+        var mode = tokenName.substring(MODE_PREFIX.length());
+        if (mode.isEmpty() || mode.equals(DEFAULT_MODE) || mModeTokenIds.containsKey(mode))
+          throw exprId.failWith("Bad or duplicate mode name");
+        mModeTokenIds.put(mode, parseTokenList(scanner));
+        continue;
+      }
+      if (tokenName.startsWith(SWITCH_PREFIX)) {
+        checkTokenList(scanner, exprId);
+        var mode = tokenName.substring(SWITCH_PREFIX.length());
+        if (!mode.equals(DEFAULT_MODE) && !mModeTokenIds.containsKey(mode))
+          throw exprId.failWith("Undefined mode");
+        for (int id : parseTokenList(scanner))
+          if (mSwitchModes.put(id, mode) != null)
+            throw exprId.failWith("Token already switches modes");
+        continue;
+      }
+
       // Give it the next available token id, if it's not an anonymous token; else -1
 
       int token_id = -1;
@@ -72,9 +216,11 @@ public final class DFACompiler extends BaseObject {
       if (mTokenNameMap.containsKey(tokenName))
         throw exprId.failWith("Duplicate token name");
 
-      rex.parse(scanner, mTokenNameMap);
+      rex.parse(scanner, mTokenNameMap, mStateFactory);
 
       mTokenNameMap.put(tokenName, rex);
+      if (rex.repeatStateCount() != 0)
+        log("repetition counts in", tokenName, "produced", rex.repeatStateCount(), "NFA states");
 
       if (rex.id() < 0)
         continue;
@@ -89,8 +235,218 @@ public final class DFACompiler extends BaseObject {
     }
   }
 
-  private DFABuilder createBuilder(List<TokenDefinition> token_records, State startState) {
+  /**
+   * Name of the pseudo-definition that lists the tokens to be skipped, e.g.
+   *
+   * <pre>
+   *   _SKIP: $WS | $COMMENT
+   * </pre>
+   */
+  static final String SKIP_DEFINITION = "_SKIP";
+
+  /**
+   * Prefix of the pseudo-definitions that declare lexer modes (start
+   * conditions), listing the tokens recognized in each, e.g.
+   *
+   * <pre>
+   *   _MODE_STRING: $STRING_TEXT | $ESCAPE | $INTERP_START | $QUOTE
+   * </pre>
+   *
+   * The DEFAULT mode recognizes the tokens that aren't in any declared mode
+   */
+  static final String MODE_PREFIX = "_MODE_";
+
+  /**
+   * Prefix of the pseudo-definitions that list the tokens that switch to a
+   * mode, e.g.
+   *
+   * <pre>
+   *   _SWITCH_STRING: $QUOTE_START
+   *   _SWITCH_DEFAULT: $QUOTE
+   * </pre>
+   */
+  static final String SWITCH_PREFIX = "_SWITCH_";
+
+  static final String DEFAULT_MODE = DfaMetadata.DEFAULT_MODE_NAME;
+
+  /**
+   * Parse a list of (previously defined) tokens, e.g. "$WS | $COMMENT", and
+   * return their ids
+   */
+  private List<Integer> parseTokenList(Lexer scanner) {
+    List<Integer> ids = arrayList();
+    while (true) {
+      var t = scanner.read(TokenDefinitionParser.T_RXREF);
+      var name = t.text().substring(1);
+      var rex = mTokenNameMap.get(name);
+      if (rex == null || rex.id() < 0)
+        throw t.failWith("Not a token: " + name);
+      ids.add(rex.id());
+      if (!scanner.readIf(TokenDefinitionParser.T_ALTERNATE))
+        break;
+    }
+    return ids;
+  }
+
+  /**
+   * Verify that a reserved name is followed by a list of tokens; this
+   * distinguishes it from an (anonymous) expression that happens to have the
+   * same name, which is no longer allowed
+   */
+  private static void checkTokenList(Lexer scanner, Lexeme exprId) {
+    if (!scanner.hasNext() || !scanner.peek().id(TokenDefinitionParser.T_RXREF))
+      throw exprId.failWith("The name " + chomp(exprId.text(), ":")
+          + " is reserved, and must be followed by a list of tokens (e.g. $A | $B)");
+  }
+
+  /**
+   * Get the tokens recognized by each mode, starting with the default mode
+   */
+  private List<List<TokenDefinition>> modeTokenRecords() {
+    List<List<TokenDefinition>> result = arrayList();
+    Set<Integer> inModes = hashSet();
+    for (var ids : mModeTokenIds.values())
+      inModes.addAll(ids);
+    List<TokenDefinition> defaultRecords = arrayList();
+    for (var rec : mTokenRecords)
+      if (!inModes.contains(rec.id()))
+        defaultRecords.add(rec);
+    result.add(defaultRecords);
+    for (var ids : mModeTokenIds.values()) {
+      List<TokenDefinition> records = arrayList();
+      for (var rec : mTokenRecords)
+        if (ids.contains(rec.id()))
+          records.add(rec);
+      result.add(records);
+    }
+    return result;
+  }
+
+  private List<String> modeNames() {
+    List<String> names = arrayList();
+    names.add(DEFAULT_MODE);
+    names.addAll(mModeTokenIds.keySet());
+    return names;
+  }
+
+  /**
+   * Construct a map of token id => index of the mode it switches to
+   */
+  private Map<Integer, Integer> modeSwitches() {
+    var names = modeNames();
+    Map<Integer, Integer> switches = treeMap();
+    for (var ent : mSwitchModes.entrySet())
+      switches.put(ent.getKey(), names.indexOf(ent.getValue()));
+    return switches;
+  }
+
+  private int[] modeStartAddresses(DFABuilder bld, List<State> startStates) {
+    var ordered = reachableFromAll(startStates);
+    var addresses = new int[startStates.size()];
+    for (int i = 0; i < addresses.length; i++)
+      addresses[i] = bld.stateAddress(bld.states().get(ordered.indexOf(startStates.get(i))));
+    return addresses;
+  }
+
+  /**
+   * Construct a DFA that recognizes a set of tokens, and return its start state
+   */
+  private State buildModeDFA(List<TokenDefinition> records) {
+    State combined = combineNFAs(records);
+    {
+      int removed = removeEpsilonEdges(combined);
+      log("epsilon elimination removed", removed, "NFA states");
+    }
+    if (verbose())
+      log(stateMachineToString(combined, "combined regex state machines"));
+
+    State startState = NFAToDFA.convert(combined);
+    if (verbose())
+      log(stateMachineToString(startState, "nfa to dfa"));
+
+    List<String> redundantTokenNames = applyRedundantTokenFilter(records, startState);
+    if (nonEmpty(redundantTokenNames))
+      badArg("Subsumed token(s) found (move them lower down in the .rxp file!):", redundantTokenNames);
+    return startState;
+  }
+
+  /**
+   * Combine the DFAs of several modes into a single state machine, merging
+   * equivalent states (including their final states), so identical parts of
+   * the modes' DFAs are shared. Returns the (possibly replaced) start states
+   */
+  private List<State> mergeModes(List<State> startStates) {
+    var states = reachableFromAll(startStates);
+    for (var s : startStates)
+      mUnmergedStateCount += reachableStates(s).size();
+
+    // Partition the states into classes of equivalent states, by repeatedly refining
+    // them according to the classes of their edges' destinations (Moore's algorithm)
+    Map<State, Integer> classes = hashMap();
+    for (var s : states)
+      classes.put(s, s.finalState() ? 1 : 0);
+    int classCount = 0;
+    while (true) {
+      Map<String, Integer> signatures = hashMap();
+      Map<State, Integer> refined = hashMap();
+      for (var s : states) {
+        var sig = new StringBuilder().append(classes.get(s));
+        List<Edge> edges = new ArrayList<>(s.edges());
+        edges.sort((a, b) -> Integer.compare(a.labels()[0], b.labels()[0]));
+        for (var e : edges)
+          sig.append(' ').append(JSList.with(e.labels())).append(':').append(classes.get(e.destinationState()));
+        refined.put(s, signatures.computeIfAbsent(sig.toString(), k -> signatures.size()));
+      }
+      classes = refined;
+      if (signatures.size() == classCount)
+        break;
+      classCount = signatures.size();
+    }
+
+    // Use the first state of each class as its representative, redirecting edges to the representatives
+    Map<Integer, State> representatives = hashMap();
+    for (var s : states)
+      representatives.putIfAbsent(classes.get(s), s);
+    for (var s : representatives.values()) {
+      // Merge any edges that now lead to the same state
+      Map<State, CodeSet> labels = new LinkedHashMap<>();
+      for (var e : s.edges()) {
+        var dest = representatives.get(classes.get(e.destinationState()));
+        labels.computeIfAbsent(dest, k -> new CodeSet()).addSet(e.codeSet());
+      }
+      List<Edge> edges = arrayList();
+      for (var ent : labels.entrySet())
+        edges.add(new Edge(ent.getValue(), ent.getKey()));
+      s.setEdges(edges);
+    }
+    mMergedStateCount = representatives.size();
+    log("merging modes reduced", mUnmergedStateCount, "states to", mMergedStateCount);
+
+    List<State> result = arrayList();
+    for (var s : startStates)
+      result.add(representatives.get(classes.get(s)));
+    return result;
+  }
+
+  /**
+   * Get the states reachable from any of a list of start states, with the first
+   * start state first
+   */
+  private static List<State> reachableFromAll(List<State> startStates) {
+    Set<State> known = hashSet();
+    List<State> result = arrayList();
+    for (var start : startStates)
+      for (var s : reachableStates(start))
+        if (known.add(s))
+          result.add(s);
+    return result;
+  }
+
+  private DFABuilder createBuilder(List<TokenDefinition> token_records, List<State> startStates) {
+    State startState = startStates.get(0);
     var dfaBuilder = new DFABuilder();
+    if (mLayout)
+      dfaBuilder.withLayout(DFABuilder.HEURISTIC_WEIGHTS);
 
     List<String> tokenNames = arrayList();
     for (TokenDefinition ent : token_records) {
@@ -98,7 +454,7 @@ public final class DFACompiler extends BaseObject {
     }
     dfaBuilder.setTokenNames(tokenNames);
 
-    List<State> reachable = reachableStates(startState);
+    List<State> reachable = reachableFromAll(startStates);
     State finalState = null;
 
     Map<State, Integer> stateIndexMap = hashMap();
@@ -121,7 +477,7 @@ public final class DFACompiler extends BaseObject {
     {
       List<State> newStates = arrayList();
       for (int i = 0; i < orderedStates.size(); i++) {
-        newStates.add(new State());
+        newStates.add(mStateFactory.newState());
       }
 
       State x = null;
@@ -151,7 +507,7 @@ public final class DFACompiler extends BaseObject {
 
     // Create a new distinguished start state
     //
-    State start_state = new State();
+    State start_state = mStateFactory.newState();
     for (TokenDefinition regParse : token_records) {
 
       NFA newStates = duplicateNFA(regParse.startState(), regParse.endState());
@@ -163,7 +519,7 @@ public final class DFACompiler extends BaseObject {
       // labelled with the token id (actually, a transformed token id to distinguish
       // it from character codes)
       State dupEnd = newStates.end;
-      State dupfinal_state = new State(true);
+      State dupfinal_state = mStateFactory.newState(true);
 
       CodeSet cs = CodeSet.withValue(State.tokenIdToEdgeLabel(regParse.id()));
       addEdge(dupEnd, cs, dupfinal_state);
@@ -203,5 +559,17 @@ public final class DFACompiler extends BaseObject {
   // Maps token name to token entry
   private Map<String, TokenDefinition> mTokenNameMap;
   private int mNextTokenId;
+  private DfaMetadata mMetadata;
+  private StateFactory mStateFactory;
+  private boolean mLayout;
+  private List<byte[]> mProfileCorpora;
+  private DfaProfile mProfile;
+  private Set<Integer> mSkipTokenIds;
+  // Map of mode name => ids of the tokens it recognizes
+  private Map<String, List<Integer>> mModeTokenIds;
+  // Map of token id => name of the mode it switches to
+  private Map<Integer, String> mSwitchModes;
+  private int mUnmergedStateCount;
+  private int mMergedStateCount;
 
 }
@@ -0,0 +1,169 @@
+package dfa;
+
+import js.json.JSMap;
+import js.parsing.DFA;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import static js.base.Tools.*;
+
+/**
+ * A compact binary container for a compiled DFA, as an alternative to the
+ * (JSON) .dfa file.
+ *
+ * <pre>
+ *   <file>     ::= <magic "DFAB"> <format version: u16> <flags: u16>
+ *                  <token count: u32> <token name>* <graph length: u32> <graph bytes>
+ *                  <section>*
+ *
+ *   <token name> ::= <length: u16> <UTF-8 bytes>
+ *
+ *   <section>  ::= <tag: 4 ASCII bytes> <length: u32> <bytes>
+ * </pre>
+ *
+ * All integers are little-endian. Sections are optional, and readers skip any
+ * they don't recognize; the only one defined so far is "META" (the DFA's
+ * metadata, as JSON).
+ *
+ * Loading involves no text parsing; the graph is copied from the buffer (e.g.
+ * a memory-mapped file) with a single bulk transfer, since the DFA requires a
+ * byte array.
+ */
+public final class DfaBinary {
+
+  public static final int FORMAT_VERSION = 1;
+
+  private static final byte[] MAGIC = {'D', 'F', 'A', 'B'};
+  private static final String SECTION_METADATA = "META";
+
+  /**
+   * Encode a DFA and its metadata (which may be null)
+   */
+  public static byte[] encode(DFA dfa, DfaMetadata metadata) {
+    var out = new ByteArrayOutputStream();
+    out.writeBytes(MAGIC);
+    writeShort(out, FORMAT_VERSION);
+    writeShort(out, 0);
+    var names = dfa.tokenNames();
+    writeInt(out, names.length);
+    for (var name : names) {
+      var bytes = name.getBytes(StandardCharsets.UTF_8);
+      checkArgument(bytes.length <= 0xffff, "token name too long:", name);
+      writeShort(out, bytes.length);
+      out.writeBytes(bytes);
+    }
+    var graph = dfa.graph();
+    writeInt(out, graph.length);
+    out.writeBytes(graph);
+    if (metadata != null)
+      writeSection(out, SECTION_METADATA, metadata.toJson().toString().getBytes(StandardCharsets.UTF_8));
+    return out.toByteArray();
+  }
+
+  public static DfaBinary decode(byte[] bytes) {
+    return decode(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Decode a DFA from a buffer, starting at its current position
+   */
+  public static DfaBinary decode(ByteBuffer buffer) {
+    var b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    for (byte m : MAGIC)
+      if (b.get() != m)
+        throw badArg("not a binary DFA");
+    int version = b.getShort() & 0xffff;
+    if (version != FORMAT_VERSION)
+      throw badArg("unsupported binary DFA version:", version);
+    b.getShort();
+
+    int tokenCount = b.getInt();
+    checkArgument(tokenCount >= 0 && tokenCount <= Util.MAX_TOKEN_DEF, "bad token count:", tokenCount);
+    var names = new String[tokenCount];
+    for (int i = 0; i < tokenCount; i++) {
+      int len = b.getShort() & 0xffff;
+      names[i] = decodeString(b, len);
+    }
+
+    int graphLength = b.getInt();
+    checkArgument(graphLength >= 0 && graphLength <= b.remaining(), "bad graph length:", graphLength);
+    var graph = new byte[graphLength];
+    b.get(graph);
+
+    var result = new DfaBinary();
+    result.mDfa = new DFA(DFA.VERSION, names, graph);
+
+    while (b.remaining() > 0) {
+      checkArgument(b.remaining() >= 8, "truncated section header");
+      var tag = decodeString(b, 4);
+      int len = b.getInt();
+      checkArgument(len >= 0 && len <= b.remaining(), "bad section length:", len);
+      if (tag.equals(SECTION_METADATA)) {
+        var json = new JSMap(decodeString(b, len));
+        result.mMetadata = DfaMetadata.fromJson(json, graph);
+      } else
+        b.position(b.position() + len);
+    }
+    return result;
+  }
+
+  /**
+   * Read a binary DFA file by memory-mapping it
+   */
+  public static DfaBinary read(File file) {
+    try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    }
+  }
+
+  public DFA dfa() {
+    return mDfa;
+  }
+
+  /**
+   * Get the DFA's metadata; if the file didn't include any, it is derived from
+   * the graph
+   */
+  public DfaMetadata metadata() {
+    if (mMetadata == null)
+      mMetadata = DfaMetadata.analyze(mDfa);
+    return mMetadata;
+  }
+
+  private static String decodeString(ByteBuffer b, int length) {
+    var bytes = new byte[length];
+    b.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeSection(ByteArrayOutputStream out, String tag, byte[] content) {
+    out.writeBytes(tag.getBytes(StandardCharsets.US_ASCII));
+    writeInt(out, content.length);
+    out.writeBytes(content);
+  }
+
+  private static void writeShort(ByteArrayOutputStream out, int value) {
+    out.write(value);
+    out.write(value >> 8);
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    writeShort(out, value);
+    writeShort(out, value >> 16);
+  }
+
+  private DfaBinary() {
+  }
+
+  private DFA mDfa;
+  private DfaMetadata mMetadata;
+}
@@ -0,0 +1,468 @@
+package dfa;
+
+import js.parsing.DFA;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static js.base.Tools.*;
+
+/**
+ * A cursor-style tokenizer over a compiled DFA.
+ *
+ * Unlike the Lexer and Scanner classes, it doesn't construct a Lexeme (or a
+ * String) for each token; instead, the caller calls nextToken() and inspects
+ * the token's bounds within the source buffer via tokenStart() and tokenEnd().
+ * Once the text has been supplied, reading tokens performs no allocation.
+ */
+public final class DfaCursor {
+
+  /**
+   * Token id returned for a byte that doesn't start any token
+   */
+  public static final int ID_UNKNOWN = -1;
+
+  /**
+   * Token id returned when there is no more input
+   */
+  public static final int ID_END_OF_INPUT = -2;
+
+  /**
+   * Construct a cursor for a DFA, using metadata derived from its graph alone.
+   * The graph doesn't record lexer modes or skip sets, so the cursor has
+   * neither; to keep them, pass the metadata from DfaMetadata.read()
+   */
+  public DfaCursor(DFA dfa) {
+    this(dfa, DfaMetadata.analyze(dfa));
+  }
+
+  public DfaCursor(DFA dfa, DfaMetadata metadata) {
+    mDfa = dfa;
+    mGraph = HybridGraph.encode(dfa.graph(), metadata);
+    mRunSkippers = metadata.buildRunSkippers(mGraph);
+    mDeadEnds = metadata.buildDeadEndFlags(mGraph);
+
+    // Determine the start state of each mode, and the table (if any) for following its edges
+    int modeCount = metadata.modeNames().size();
+    mModeNames = metadata.modeNames();
+    mModeStarts = new int[modeCount];
+    mModeStartTables = new int[modeCount][];
+    for (int i = 0; i < modeCount; i++) {
+      mModeStarts[i] = mGraph.offsetOf(metadata.modeStart(i));
+      mModeStartTables[i] = buildStartTable(mModeStarts[i]);
+    }
+    mModeSwitches = new int[dfa.tokenNames().length];
+    for (int id = 0; id < mModeSwitches.length; id++)
+      mModeSwitches[id] = metadata.modeSwitch(id);
+    mHasModes = metadata.hasModes();
+    setMode(0);
+    var firstCodes = metadata.firstCodes().dup();
+    firstCodes.add(0);
+    mFirstCodeSkipper = new RunSkipper(firstCodes);
+    mPrefix = metadata.prefix();
+    mSkipFlags = new boolean[dfa.tokenNames().length];
+    for (int id : metadata.skipTokenIds())
+      if (id < mSkipFlags.length)
+        mSkipFlags[id] = true;
+  }
+
+  /**
+   * Skip tokens in the DFA's skip set (e.g. whitespace and comments, as
+   * declared by the script's _SKIP definition), rather than returning them
+   */
+  public DfaCursor withSkipping(boolean skipping) {
+    mSkipping = skipping;
+    return this;
+  }
+
+  public DFA dfa() {
+    return mDfa;
+  }
+
+  public DfaCursor withText(String text) {
+    return withText(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public DfaCursor withText(byte[] bytes) {
+    return withText(bytes, 0, bytes.length);
+  }
+
+  /**
+   * Tokenize a region of a byte array; the array is not copied
+   */
+  public DfaCursor withText(byte[] bytes, int start, int end) {
+    checkArgument(start >= 0 && start <= end && end <= bytes.length, "bad text region:", start, end);
+    mInput = bytes;
+    mInputEnd = end;
+    mCursor = start;
+    mTokenStart = start;
+    mTokenEnd = start;
+    mTokenId = ID_END_OF_INPUT;
+    mLinePos = start;
+    mLine = 0;
+    setMode(0);
+    return this;
+  }
+
+  /**
+   * Set the lexer mode (see DFACompiler.MODE_PREFIX), which determines the
+   * start state for subsequent tokens. Reading a token may also switch modes.
+   * Each call to withText() restores the default mode
+   */
+  public DfaCursor setMode(int modeIndex) {
+    mMode = modeIndex;
+    mStartState = mModeStarts[modeIndex];
+    mStartTable = mModeStartTables[modeIndex];
+    return this;
+  }
+
+  public DfaCursor setMode(String modeName) {
+    int index = mModeNames.indexOf(modeName);
+    checkArgument(index >= 0, "no such mode:", modeName);
+    return setMode(index);
+  }
+
+  /**
+   * Get the index of the current mode; the default mode's is zero
+   */
+  public int mode() {
+    return mMode;
+  }
+
+  public String modeName() {
+    return mModeNames.get(mMode);
+  }
+
+  public boolean hasNext() {
+    return mCursor < mInputEnd;
+  }
+
+  /**
+   * Read the next token, and return its id; or ID_UNKNOWN if no token matches
+   * (in which case a single byte is consumed), or ID_END_OF_INPUT if the text
+   * is exhausted
+   */
+  public int nextToken() {
+    checkState(mInput != null, "no text");
+    int id = readToken();
+    if (mSkipping) {
+      final boolean[] skipFlags = mSkipFlags;
+      while (id >= 0 && skipFlags[id])
+        id = readToken();
+    }
+    return id;
+  }
+
+  private int readToken() {
+    mTokenStart = mCursor;
+    if (mCursor >= mInputEnd) {
+      mTokenEnd = mCursor;
+      mScanEnd = mCursor;
+      mTokenId = ID_END_OF_INPUT;
+      return mTokenId;
+    }
+
+    int tokenId = ID_UNKNOWN;
+    int tokenEnd = mCursor + 1;
+    int scanEnd = 0;
+    // Number of bytes examined at the position where the scan stops
+    int lookahead = 1;
+
+    final HybridGraph g = mGraph;
+    final byte[] input = mInput;
+    int state = mStartState;
+    int pos = mCursor;
+
+    final RunSkipper[] runSkippers = mRunSkippers;
+    final boolean[] deadEnds = mDeadEnds;
+    final int[] startTable = mStartTable;
+
+    if (startTable != null) {
+      // Follow the start state's edge with a single lookup
+      state = startTable[charCode(input[pos])];
+      pos++;
+      // If there's no such edge, the byte we just stepped past is the only one examined
+      if (state < 0)
+        lookahead = 0;
+    }
+
+    while (state >= 0) {
+      // If this state loops to itself for most codes, skip the run of such codes
+      var skipper = runSkippers[state];
+      if (skipper != null)
+        pos = skipper.skip(input, pos, mInputEnd);
+
+      int acceptedId = g.acceptedId(state);
+      if (acceptedId >= 0) {
+        tokenId = acceptedId;
+        tokenEnd = pos;
+      }
+      // If no longer match is possible from here, don't bother examining more input
+      if (deadEnds[state]) {
+        lookahead = 0;
+        break;
+      }
+      if (pos == mInputEnd)
+        break;
+      if (g.kind(state) == HybridGraph.KIND_RUN) {
+        // Follow a chain of single codes (e.g. the rest of a keyword) with a single comparison;
+        // no state within the chain accepts a token, so if it doesn't match, we're done
+        int runEnd = g.matchRun(state, input, pos, mInputEnd);
+        if (runEnd < 0) {
+          scanEnd = Math.min(pos + g.runLength(state), mInputEnd);
+          break;
+        }
+        pos = runEnd;
+        state = g.runTarget(state);
+        continue;
+      }
+      int nextState = g.next(state, charCode(input[pos]));
+      if (nextState < 0)
+        break;
+      state = nextState;
+      pos++;
+    }
+
+    mTokenId = tokenId;
+    mTokenEnd = tokenEnd;
+    mCursor = tokenEnd;
+    if (mHasModes && tokenId >= 0) {
+      int mode = mModeSwitches[tokenId];
+      if (mode >= 0)
+        setMode(mode);
+    }
+    // We have examined (at most) the byte at the position where we stopped
+    mScanEnd = Math.max(scanEnd, Math.min(pos + lookahead, mInputEnd));
+    return tokenId;
+  }
+
+  /**
+   * Read tokens into a batch, replacing its previous contents, until it is
+   * full or the text is exhausted; returns the number of tokens read (zero if
+   * there are no more). Tokens with id ID_UNKNOWN are included, and those in
+   * the skip set are omitted (if skipping is enabled).
+   *
+   * If the batch records line numbers, they are relative to the start of the
+   * text
+   */
+  public int nextBatch(TokenBatch batch) {
+    checkState(mInput != null, "no text");
+    final int[] ids = batch.ids();
+    final int[] starts = batch.starts();
+    final int[] lengths = batch.lengths();
+    final int[] lines = batch.lines();
+    final int capacity = batch.capacity();
+    int n = 0;
+    while (n < capacity && mCursor < mInputEnd) {
+      int id = nextToken();
+      // If skipping, there may have been no more (unskipped) tokens
+      if (id == ID_END_OF_INPUT)
+        break;
+      ids[n] = id;
+      starts[n] = mTokenStart;
+      lengths[n] = mTokenEnd - mTokenStart;
+      if (lines != null)
+        lines[n] = lineAt(mTokenStart);
+      n++;
+    }
+    batch.setSize(n);
+    return n;
+  }
+
+  /**
+   * Get the line number of a position, which must not precede that of the
+   * previous call
+   */
+  private int lineAt(int pos) {
+    final byte[] input = mInput;
+    int line = mLine;
+    for (int i = mLinePos; i < pos; i++)
+      if (input[i] == '\n')
+        line++;
+    mLine = line;
+    mLinePos = pos;
+    return line;
+  }
+
+  /**
+   * Construct the table, indexed by code, of the states reached from a (mode's)
+   * start state; or null if the start state must be handled like any other
+   * (i.e. it accepts a token, or has a self-loop to be skipped). It is built
+   * when the DFA is loaded, as it is cheap to derive from the graph
+   */
+  private int[] buildStartTable(int startState) {
+    if (mGraph.acceptedId(startState) >= 0 || mRunSkippers[startState] != null || mDeadEnds[startState])
+      return null;
+    var table = new int[Util.MAX_CHAR_CODE];
+    for (int c = 0; c < table.length; c++)
+      table[c] = mGraph.next(startState, c);
+    return table;
+  }
+
+  /**
+   * Search for the next token, skipping any bytes that don't start one (rather
+   * than reporting them as ID_UNKNOWN); returns its id, or ID_END_OF_INPUT if
+   * there are no more tokens
+   */
+  public int find() {
+    checkState(mInput != null, "no text");
+    while (true) {
+      if (mMode != 0) {
+        // The first codes and prefix are those of the default mode, so can't be used
+        int id = nextToken();
+        if (id != ID_UNKNOWN)
+          return id;
+        continue;
+      }
+      // Jump to the next byte that can start a token
+      int pos = mFirstCodeSkipper.skip(mInput, mCursor, mInputEnd);
+      mCursor = pos;
+      if (pos == mInputEnd)
+        return nextToken();
+      if (!matchesPrefix(pos)) {
+        mCursor = pos + 1;
+        continue;
+      }
+      int id = nextToken();
+      if (id != ID_UNKNOWN)
+        return id;
+    }
+  }
+
+  /**
+   * Determine if the text at a position starts with the literal prefix that
+   * all tokens start with
+   */
+  private boolean matchesPrefix(int pos) {
+    var prefix = mPrefix;
+    if (prefix.length <= 1)
+      return true;
+    if (pos + prefix.length > mInputEnd)
+      return false;
+    for (int i = 1; i < prefix.length; i++)
+      if (charCode(mInput[pos + i]) != prefix[i])
+        return false;
+    return true;
+  }
+
+  /**
+   * Get the id of the most recently read token
+   */
+  public int tokenId() {
+    return mTokenId;
+  }
+
+  /**
+   * Get the offset of the first byte of the most recently read token
+   */
+  public int tokenStart() {
+    return mTokenStart;
+  }
+
+  /**
+   * Get the offset just past the last byte of the most recently read token
+   */
+  public int tokenEnd() {
+    return mTokenEnd;
+  }
+
+  /**
+   * Get the offset just past the last byte that was examined while reading
+   * the most recent token; this can extend beyond the token's end, since
+   * longer matches were sought. A change to the text at or beyond this offset
+   * can't affect the token, unless the offset is the end of the text (in which
+   * case appending to the text might)
+   */
+  public int scanEnd() {
+    return mScanEnd;
+  }
+
+  public int tokenLength() {
+    return mTokenEnd - mTokenStart;
+  }
+
+  /**
+   * Get the text of the most recently read token. This allocates a String, so
+   * should be avoided in performance-critical code
+   */
+  public String tokenText() {
+    return new String(mInput, mTokenStart, tokenLength(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Get the name of the most recently read token
+   */
+  public String tokenName() {
+    if (mTokenId < 0)
+      return mTokenId == ID_UNKNOWN ? "<UNKNOWN>" : "<END>";
+    return mDfa.tokenName(mTokenId);
+  }
+
+  /**
+   * Get the current read position within the text
+   */
+  public int position() {
+    return mCursor;
+  }
+
+  /**
+   * Map a byte of input to the character code used to label the DFA's edges.
+   * Bytes outside of the ASCII range (and DEL) all map to 0x7f
+   */
+  static int charCode(byte b) {
+    int c = b & 0xff;
+    if (c >= Util.MAX_CHAR_CODE)
+      c = Util.MAX_CHAR_CODE - 1;
+    return c;
+  }
+
+  /**
+   * Find the address of the state reached from a state by following the edge
+   * containing a character code, or -1 if there is no such edge
+   */
+  static int transition(byte[] g, int state, int code) {
+    int edgeCount = g[state + 1] & 0xff;
+    int p = state + 2;
+    for (int e = 0; e < edgeCount; e++) {
+      // <edge>  ::= <number of char_range items> <char_range>* <dest_state_id, low byte first>
+      int rangeCount = g[p] & 0xff;
+      int dest = p + 1 + 2 * rangeCount;
+      for (int r = p + 1; r < dest; r += 2) {
+        int first = g[r] & 0xff;
+        if (code >= first && code < first + (g[r + 1] & 0xff))
+          return (g[dest] & 0xff) | ((g[dest + 1] & 0xff) << 8);
+      }
+      p = dest + 2;
+    }
+    return -1;
+  }
+
+  private final DFA mDfa;
+  // States are identified by their offsets within this encoding, not their addresses in the DFA's graph
+  private final HybridGraph mGraph;
+  private final RunSkipper[] mRunSkippers;
+  private final boolean[] mDeadEnds;
+  private final List<String> mModeNames;
+  private final int[] mModeStarts;
+  private final int[][] mModeStartTables;
+  // Index of mode that each token switches to, or -1
+  private final int[] mModeSwitches;
+  private final boolean mHasModes;
+  private int mMode;
+  private int mStartState;
+  private int[] mStartTable;
+  private final RunSkipper mFirstCodeSkipper;
+  private final byte[] mPrefix;
+  private final boolean[] mSkipFlags;
+  private boolean mSkipping;
+  private byte[] mInput;
+  private int mInputEnd;
+  private int mCursor;
+  private int mTokenStart;
+  private int mTokenEnd;
+  private int mScanEnd;
+  private int mTokenId = ID_END_OF_INPUT;
+  // Position up to which linefeeds have been counted, and the number counted
+  private int mLinePos;
+  private int mLine;
+}
@@ -0,0 +1,455 @@
+package dfa;
+
+import js.data.IntArray;
+import js.json.JSList;
+import js.json.JSMap;
+import js.parsing.DFA;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static js.base.Tools.*;
+import static dfa.Util.*;
+
+/**
+ * Supplementary information about a compiled DFA's graph.
+ *
+ * The compiler writes this to the .dfa file (as a map with key KEY) alongside
+ * the graph; runtimes that don't know about it can ignore it. Anything that can
+ * be derived from the graph alone can also be reconstructed via analyze(), so
+ * DFAs from older .dfa files still benefit.
+ */
+public final class DfaMetadata {
+
+  public static final String KEY = "metadata";
+
+  /**
+   * Self-loops are only annotated if they are labelled with at least this many
+   * character codes
+   */
+  static final int MIN_SELF_LOOP_CODES = 8;
+
+  private static final int MAX_PREFIX_LENGTH = 32;
+
+  static final String DEFAULT_MODE_NAME = "DEFAULT";
+
+  private static final String KEY_SELF_LOOPS = "self_loops";
+  private static final String KEY_DEAD_ENDS = "dead_ends";
+  private static final String KEY_FIRST_CODES = "first_codes";
+  private static final String KEY_PREFIX = "prefix";
+  private static final String KEY_DENSE_STATES = "dense_states";
+  private static final String KEY_SKIP = "skip";
+  private static final String KEY_MODE_NAMES = "mode_names";
+  private static final String KEY_MODE_STARTS = "mode_starts";
+  private static final String KEY_SWITCHES = "switches";
+
+  /**
+   * A state is encoded densely (see HybridGraph) if it has at least this many
+   * ranges of codes; or, if its use has been profiled, at least
+   * MIN_HOT_DENSE_RANGES ranges and at least 1/HOT_STATE_FRACTION of the visits
+   */
+  static final int MIN_DENSE_RANGES = 8;
+  static final int MIN_HOT_DENSE_RANGES = 3;
+  static final int HOT_STATE_FRACTION = 100;
+
+  /**
+   * Analyze a DFA's graph to produce its metadata
+   */
+  public static DfaMetadata analyze(DFA dfa) {
+    return analyze(dfa.graph());
+  }
+
+  static DfaMetadata analyze(byte[] graph) {
+    var m = new DfaMetadata();
+    m.mGraphLength = graph.length;
+    // Map of state address => addresses of states with edges to it
+    Map<Integer, Set<Integer>> predecessors = hashMap();
+    List<Integer> acceptingStates = arrayList();
+
+    int offset = 0;
+    while (offset < graph.length) {
+      int state = offset;
+      predecessors.computeIfAbsent(state, k -> hashSet());
+      if (graph[state] != 0)
+        acceptingStates.add(state);
+      var loopCodes = new CodeSet();
+      int[] rangeCount = new int[1];
+      offset = forEachEdgeRange(graph, state, (first, end, destState) -> {
+        if (destState == state)
+          loopCodes.add(first, end);
+        predecessors.computeIfAbsent(destState, k -> hashSet()).add(state);
+        rangeCount[0]++;
+      });
+      if (loopCodes.size() >= MIN_SELF_LOOP_CODES)
+        m.mSelfLoopExits.put(state, CodeSet.withRange(0, MAX_CHAR_CODE).difference(loopCodes));
+      if (rangeCount[0] >= MIN_DENSE_RANGES)
+        m.mDenseStates.add(state);
+    }
+    m.findDeadEnds(predecessors, acceptingStates);
+    m.findFirstCodes(graph);
+    m.extractPrefix(graph);
+    return m;
+  }
+
+  /**
+   * Find the states from which no accepting state can be reached by consuming
+   * one or more additional codes. Once a scanner reaches such a state, it can
+   * stop without examining any more input
+   */
+  private void findDeadEnds(Map<Integer, Set<Integer>> predecessors, List<Integer> acceptingStates) {
+    // Find the states that can extend a token to an accepting state, by working
+    // backwards from the accepting states
+    Set<Integer> canExtend = hashSet();
+    List<Integer> stack = arrayList();
+    Set<Integer> visited = hashSet();
+    for (int s : acceptingStates) {
+      push(stack, s);
+      visited.add(s);
+    }
+    while (nonEmpty(stack)) {
+      int s = pop(stack);
+      for (int p : predecessors.get(s)) {
+        canExtend.add(p);
+        if (visited.add(p))
+          push(stack, p);
+      }
+    }
+    for (int s : predecessors.keySet())
+      if (!canExtend.contains(s))
+        mDeadEnds.add(s);
+  }
+
+  /**
+   * Determine the codes that can start a token (the labels of the start state's
+   * edges)
+   */
+  private void findFirstCodes(byte[] graph) {
+    mFirstCodes = new CodeSet();
+    if (graph.length != 0)
+      forEachEdgeRange(graph, 0, (first, end, dest) -> mFirstCodes.add(first, end));
+  }
+
+  /**
+   * Determine the literal prefix (if any) that every token starts with
+   */
+  private void extractPrefix(byte[] graph) {
+    mPrefix = new byte[0];
+    if (graph.length == 0)
+      return;
+
+    var prefix = IntArray.newBuilder();
+    int state = 0;
+    while (true) {
+      // Stop at an accepting state, or one that doesn't have exactly one edge with a single code
+      if (graph[state] != 0 || graph[state + 1] != 1 || graph[state + 2] != 1 || graph[state + 4] != 1)
+        break;
+      prefix.add(graph[state + 3] & 0xff);
+      int next = (graph[state + 5] & 0xff) | ((graph[state + 6] & 0xff) << 8);
+      if (next == state || prefix.size() == MAX_PREFIX_LENGTH)
+        break;
+      state = next;
+    }
+    mPrefix = new byte[prefix.size()];
+    for (int i = 0; i < mPrefix.length; i++)
+      mPrefix[i] = (byte) prefix.get(i);
+  }
+
+  /**
+   * Choose additional states to be encoded densely, based on how often they
+   * were visited while profiling
+   *
+   * @param stateHits map of state address => number of visits
+   */
+  void chooseDenseStates(byte[] graph, Map<Integer, Long> stateHits) {
+    long total = 0;
+    for (long h : stateHits.values())
+      total += h;
+    if (total == 0)
+      return;
+    for (var ent : stateHits.entrySet()) {
+      int state = ent.getKey();
+      if (ent.getValue() * HOT_STATE_FRACTION < total)
+        continue;
+      int[] rangeCount = new int[1];
+      forEachEdgeRange(graph, state, (first, end, dest) -> rangeCount[0]++);
+      if (rangeCount[0] >= MIN_HOT_DENSE_RANGES)
+        mDenseStates.add(state);
+    }
+  }
+
+  private interface RangeVisitor {
+    void visit(int first, int end, int destState);
+  }
+
+  /**
+   * Visit each char_range of each edge leaving a state; returns the address
+   * following the state
+   */
+  private static int forEachEdgeRange(byte[] graph, int state, RangeVisitor visitor) {
+    int edgeCount = graph[state + 1] & 0xff;
+    int offset = state + 2;
+    for (int e = 0; e < edgeCount; e++) {
+      int rangeCount = graph[offset] & 0xff;
+      int dest = offset + 1 + 2 * rangeCount;
+      int destState = (graph[dest] & 0xff) | ((graph[dest + 1] & 0xff) << 8);
+      for (int r = offset + 1; r < dest; r += 2) {
+        int first = graph[r] & 0xff;
+        visitor.visit(first, first + (graph[r + 1] & 0xff), destState);
+      }
+      offset = dest + 2;
+    }
+    return offset;
+  }
+
+  /**
+   * Get the metadata for a DFA that was read from a .dfa file; if the file
+   * didn't include any, analyze the DFA's graph
+   */
+  public static DfaMetadata read(DFA dfa, String dfaFileContent) {
+    var m = new JSMap(dfaFileContent).optJSMap(KEY);
+    if (m == null)
+      return analyze(dfa);
+    return fromJson(m, dfa.graph());
+  }
+
+  /**
+   * Construct metadata from its JSON representation; the first codes are
+   * derived from the graph if the representation doesn't include them (e.g.
+   * it was written by an older version of the compiler)
+   */
+  static DfaMetadata fromJson(JSMap m, byte[] graph) {
+    var d = new DfaMetadata();
+    d.mGraphLength = graph.length;
+    var loops = m.optJSList(KEY_SELF_LOOPS);
+    if (loops != null) {
+      for (int i = 0; i < loops.size(); i++) {
+        var entry = loops.getList(i);
+        var exits = new CodeSet();
+        for (int j = 1; j < entry.size(); j += 2)
+          exits.add(entry.getInt(j), entry.getInt(j + 1));
+        d.mSelfLoopExits.put(entry.getInt(0), exits);
+      }
+    }
+    var deadEnds = m.optJSList(KEY_DEAD_ENDS);
+    if (deadEnds != null) {
+      for (int i = 0; i < deadEnds.size(); i++)
+        d.mDeadEnds.add(deadEnds.getInt(i));
+    }
+    var first = m.optJSList(KEY_FIRST_CODES);
+    if (first != null) {
+      d.mFirstCodes = new CodeSet();
+      for (int j = 0; j < first.size(); j += 2)
+        d.mFirstCodes.add(first.getInt(j), first.getInt(j + 1));
+    } else
+      d.findFirstCodes(graph);
+    var dense = m.optJSList(KEY_DENSE_STATES);
+    if (dense != null) {
+      for (int i = 0; i < dense.size(); i++)
+        d.mDenseStates.add(dense.getInt(i));
+    }
+    var skip = m.optJSList(KEY_SKIP);
+    if (skip != null) {
+      for (int i = 0; i < skip.size(); i++)
+        d.mSkipTokenIds.add(skip.getInt(i));
+    }
+    var modeStarts = m.optJSList(KEY_MODE_STARTS);
+    if (modeStarts != null) {
+      // The mode names are space-separated, as are the DFA's token names
+      var names = split(m.opt(KEY_MODE_NAMES, ""), ' ');
+      var addresses = new int[modeStarts.size()];
+      for (int i = 0; i < addresses.length; i++)
+        addresses[i] = modeStarts.getInt(i);
+      Map<Integer, Integer> switches = treeMap();
+      var sw = m.optJSList(KEY_SWITCHES);
+      if (sw != null) {
+        for (int i = 0; i < sw.size(); i += 2)
+          switches.put(sw.getInt(i), sw.getInt(i + 1));
+      }
+      d.setModes(names, addresses, switches);
+    }
+    var prefix = m.opt(KEY_PREFIX, "");
+    d.mPrefix = new byte[prefix.length()];
+    for (int i = 0; i < d.mPrefix.length; i++)
+      d.mPrefix[i] = (byte) prefix.charAt(i);
+    return d;
+  }
+
+  public JSMap toJson() {
+    var m = map();
+    var loops = list();
+    for (var ent : mSelfLoopExits.entrySet()) {
+      var entry = list();
+      entry.add(ent.getKey());
+      for (int x : ent.getValue().elements())
+        entry.add(x);
+      loops.add(entry);
+    }
+    m.put(KEY_SELF_LOOPS, loops);
+    var deadEnds = list();
+    for (int s : mDeadEnds)
+      deadEnds.add(s);
+    m.put(KEY_DEAD_ENDS, deadEnds);
+    m.put(KEY_FIRST_CODES, JSList.with(mFirstCodes.elements()));
+    var dense = list();
+    for (int s : mDenseStates)
+      dense.add(s);
+    m.put(KEY_DENSE_STATES, dense);
+    if (!mSkipTokenIds.isEmpty()) {
+      var skip = list();
+      for (int id : mSkipTokenIds)
+        skip.add(id);
+      m.put(KEY_SKIP, skip);
+    }
+    if (hasModes()) {
+      m.put(KEY_MODE_NAMES, String.join(" ", mModeNames));
+      m.put(KEY_MODE_STARTS, JSList.with(mModeStarts));
+      // Pairs of (token id, index of mode it switches to)
+      var switches = list();
+      for (var ent : mModeSwitches.entrySet()) {
+        switches.add(ent.getKey());
+        switches.add(ent.getValue());
+      }
+      m.put(KEY_SWITCHES, switches);
+    }
+    if (mPrefix.length != 0)
+      m.put(KEY_PREFIX, new String(mPrefix, StandardCharsets.US_ASCII));
+    return m;
+  }
+
+  /**
+   * Get the character codes that leave a self-looping state, or null if the
+   * state has no (annotated) self-loop
+   */
+  public CodeSet selfLoopExits(int stateAddress) {
+    return mSelfLoopExits.get(stateAddress);
+  }
+
+  /**
+   * Determine if a state is a dead end, i.e., no longer match is possible once
+   * it has been reached
+   */
+  public boolean isDeadEnd(int stateAddress) {
+    return mDeadEnds.contains(stateAddress);
+  }
+
+  /**
+   * Determine if a state's transitions should be encoded densely
+   */
+  public boolean isDense(int stateAddress) {
+    return mDenseStates.contains(stateAddress);
+  }
+
+  /**
+   * Construct an array, indexed by state offset within a HybridGraph, of dead
+   * end flags
+   */
+  boolean[] buildDeadEndFlags(HybridGraph graph) {
+    var result = new boolean[graph.size()];
+    for (int s : mDeadEnds) {
+      int offset = graph.offsetOf(s);
+      if (offset >= 0)
+        result[offset] = true;
+    }
+    return result;
+  }
+
+  /**
+   * Determine if a token is in the skip set, i.e. it should be skipped by a
+   * DfaCursor (if skipping is enabled). The skip set is declared by the script,
+   * so it can't be derived from the graph alone
+   */
+  public boolean isSkipped(int tokenId) {
+    return mSkipTokenIds.contains(tokenId);
+  }
+
+  public Set<Integer> skipTokenIds() {
+    return mSkipTokenIds;
+  }
+
+  void setSkipTokenIds(Set<Integer> tokenIds) {
+    mSkipTokenIds = treeSet();
+    mSkipTokenIds.addAll(tokenIds);
+  }
+
+  /**
+   * Determine if the DFA has lexer modes, i.e. start states other than the
+   * default one (at address zero)
+   */
+  public boolean hasModes() {
+    return mModeNames.size() > 1;
+  }
+
+  /**
+   * Get the names of the modes; the first is the default mode
+   */
+  public List<String> modeNames() {
+    return mModeNames;
+  }
+
+  /**
+   * Get the address of a mode's start state
+   */
+  public int modeStart(int modeIndex) {
+    return mModeStarts[modeIndex];
+  }
+
+  /**
+   * Get the index of the mode that a token switches to, or -1 if it doesn't
+   * switch modes
+   */
+  public int modeSwitch(int tokenId) {
+    return mModeSwitches.getOrDefault(tokenId, -1);
+  }
+
+  void setModes(List<String> names, int[] startAddresses, Map<Integer, Integer> switches) {
+    checkArgument(names.size() == startAddresses.length && startAddresses[0] == 0, "bad modes");
+    mModeNames = arrayList();
+    mModeNames.addAll(names);
+    mModeStarts = startAddresses.clone();
+    mModeSwitches = treeMap();
+    for (var ent : switches.entrySet()) {
+      checkArgument(ent.getValue() >= 0 && ent.getValue() < names.size(), "bad mode switch:", ent);
+      mModeSwitches.put(ent.getKey(), ent.getValue());
+    }
+  }
+
+  /**
+   * Get the set of codes that can appear as the first byte of a token
+   */
+  public CodeSet firstCodes() {
+    return mFirstCodes;
+  }
+
+  /**
+   * Get the literal prefix that every token starts with; usually empty
+   */
+  public byte[] prefix() {
+    return mPrefix;
+  }
+
+  /**
+   * Construct an array, indexed by state offset within a HybridGraph, of
+   * RunSkippers for the self-looping states
+   */
+  RunSkipper[] buildRunSkippers(HybridGraph graph) {
+    var result = new RunSkipper[graph.size()];
+    for (var ent : mSelfLoopExits.entrySet())
+      result[graph.offsetOf(ent.getKey())] = new RunSkipper(ent.getValue());
+    return result;
+  }
+
+  private int mGraphLength;
+  // Map of state address => codes that exit the state's self-loop
+  private Map<Integer, CodeSet> mSelfLoopExits = treeMap();
+  private Set<Integer> mDeadEnds = treeSet();
+  private Set<Integer> mDenseStates = treeSet();
+  private Set<Integer> mSkipTokenIds = treeSet();
+  private List<String> mModeNames = List.of(DEFAULT_MODE_NAME);
+  private int[] mModeStarts = {0};
+  // Map of token id => index of the mode it switches to
+  private Map<Integer, Integer> mModeSwitches = treeMap();
+  private CodeSet mFirstCodes;
+  private byte[] mPrefix;
+}
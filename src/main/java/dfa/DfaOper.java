@@ -3,7 +3,9 @@ package dfa;
 import static js.base.Tools.*;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import dfa.gen.DfaConfig;
@@ -12,6 +14,7 @@ import js.base.BasePrinter;
 import js.base.SystemCall;
 import js.data.AbstractData;
 import js.file.Files;
+import js.json.JSMap;
 import js.parsing.DFA;
 import js.parsing.Scanner;
 
@@ -49,6 +52,11 @@ public class DfaOper extends AppOper {
       return;
     }
 
+    if (config().server()) {
+      new DfaServer(files()).run(System.in, System.out);
+      return;
+    }
+
     var sourceFile = config().input();
     if (Files.empty(sourceFile)) {
       app().setError("Please specify a source file (xxx.rxp)");
@@ -75,19 +83,70 @@ public class DfaOper extends AppOper {
 
     DFACompiler compiler = new DFACompiler();
     compiler.setVerbose(verbose());
+    compiler.withLayout(config().layout());
+    compiler.withProfileCorpora(readProfileCorpora());
     var dfa = compiler.parse(Files.readString(sourceFile));
-    String str = dfa.toString();
+    String str = dfaFileContent(dfa, compiler.metadata());
     log("Size of dfa:", str.length(), "version:", config().version());
     files().writeIfChanged(targetFile, str);
+    if (config().binary())
+      writeBinary(Files.setExtension(targetFile, EXT_DFA_BINARY), DfaBinary.encode(dfa, compiler.metadata()));
+
+    if (compiler.profile() != null) {
+      var reportFile = Files.setExtension(targetFile, "heat.json");
+      files().writeIfChanged(reportFile, compiler.profile().heatReport().prettyPrint());
+    }
 
     procIdsFile(dfa);
-    processExampleText(dfa);
+    procJavaClassFile(dfa);
+    processExampleText(dfa, compiler.metadata());
 
     if (config().describe()) {
       pr(describe(dfa));
     }
   }
 
+  /**
+   * Read the sample text files used to tune the DFA, if any
+   */
+  private List<byte[]> readProfileCorpora() {
+    List<byte[]> corpora = arrayList();
+    var source = config().profile();
+    if (Files.empty(source))
+      return corpora;
+    Files.assertExists(source, "profile");
+    List<File> files = arrayList();
+    if (source.isDirectory()) {
+      var children = source.listFiles();
+      Arrays.sort(children);
+      for (var f : children)
+        if (f.isFile())
+          files.add(f);
+    } else
+      files.add(source);
+    for (var f : files) {
+      log("Reading profile corpus:", f);
+      corpora.add(Files.toByteArray(f, "profile corpus"));
+    }
+    return corpora;
+  }
+
+  /**
+   * Construct the content of a .dfa file, including the DFA's metadata
+   */
+  static String dfaFileContent(DFA dfa, DfaMetadata metadata) {
+    var m = new JSMap(dfa.toString());
+    m.put(DfaMetadata.KEY, metadata.toJson());
+    return m.toString();
+  }
+
+  private void writeBinary(File file, byte[] content) {
+    if (file.exists() && Arrays.equals(Files.toByteArray(file, "binary DFA"), content))
+      return;
+    log("Writing binary DFA:", file);
+    files().write(content, file);
+  }
+
   @Override
   public DfaConfig config() {
     return super.config();
@@ -237,13 +296,26 @@ public class DfaOper extends AppOper {
     files().writeIfChanged(idFile, sb.toString());
   }
 
+  /**
+   * If a Java class file argument was given, write a class embedding the DFA to it
+   */
+  private void procJavaClassFile(DFA dfa) {
+    var classFile = config().javaClass();
+    if (Files.empty(classFile))
+      return;
+    classFile = Files.addExtension(classFile, "java");
+    var source = JavaClassWriter.generate(dfa, JavaClassWriter.inferPackage(classFile),
+        JavaClassWriter.className(classFile));
+    files().writeIfChanged(classFile, source);
+  }
+
   private File assertExt(File file, String ext) {
     if (!Files.getExtension(file).equals(ext))
       setError("Not a ." + ext + " file:", file);
     return file;
   }
 
-  private void processExampleText(DFA dfa) {
+  private void processExampleText(DFA dfa, DfaMetadata metadata) {
     var sampleTextFile = config().exampleText();
     if (Files.empty(sampleTextFile))
       return;
@@ -251,17 +323,15 @@ public class DfaOper extends AppOper {
     sampleTextFile = sampleTextFile.getAbsoluteFile();
 
     var text = Files.readString(Files.assertExists(sampleTextFile, "example_text"));
-    // var dfa = new DFA(dfaJson);
-    var firstToken = dfa.tokenName(0);
-    int skip = -1;
-//    if (firstToken.equals("WS"))
-//      skip = 0;
-    var s = new Scanner(dfa, text, skip);
+    var s = new Scanner(dfa, text, -1);
     s.setAcceptUnknownTokens();
 
     var sb = new BasePrinter();
     while (s.hasNext()) {
       var t = s.read();
+      // Omit the tokens in the script's skip set (if any)
+      if (metadata.isSkipped(t.id()))
+        continue;
       sb.pr(t);
     }
     var results = sb.toString();
@@ -0,0 +1,149 @@
+package dfa;
+
+import js.json.JSMap;
+import js.parsing.DFA;
+
+import java.util.List;
+import java.util.Map;
+
+import static js.base.Tools.*;
+
+/**
+ * Records how often each state and edge of a compiled DFA is used while
+ * tokenizing sample text, so the DFA can be rebuilt with a layout (and
+ * encoding) tuned to that text.
+ *
+ * States and edges are identified by their addresses within the graph; an
+ * edge by the addresses of its source and destination states (which are
+ * unique, since edges leading to the same state are merged).
+ */
+public final class DfaProfile {
+
+  public DfaProfile(DFA dfa) {
+    mGraph = dfa.graph();
+    mStateHits = new long[mGraph.length];
+  }
+
+  /**
+   * Tokenize some text, recording the states visited and the edges followed
+   * (including those examined beyond the end of the longest token)
+   */
+  public void record(byte[] text) {
+    final byte[] g = mGraph;
+    int pos = 0;
+    while (pos < text.length) {
+      int state = 0;
+      int p = pos;
+      int tokenEnd = pos + 1;
+      while (true) {
+        mStateHits[state]++;
+        if (g[state] != 0)
+          tokenEnd = p;
+        if (p == text.length)
+          break;
+        int next = DfaCursor.transition(g, state, DfaCursor.charCode(text[p]));
+        if (next < 0)
+          break;
+        mEdgeHits.merge(edgeKey(state, next), 1L, Long::sum);
+        state = next;
+        p++;
+      }
+      mTokenCount++;
+      pos = tokenEnd;
+    }
+    mByteCount += text.length;
+  }
+
+  public long stateHits(int stateAddress) {
+    // The final state (which stores nothing) may have an address beyond the last state's
+    if (stateAddress >= mStateHits.length)
+      return 0;
+    return mStateHits[stateAddress];
+  }
+
+  public long edgeHits(int sourceAddress, int destAddress) {
+    return mEdgeHits.getOrDefault(edgeKey(sourceAddress, destAddress), 0L);
+  }
+
+  /**
+   * Construct EdgeWeights from the recorded edge hits, for a DFABuilder whose
+   * states correspond to those of the profiled DFA. Ties (e.g. between edges
+   * that were never followed) are broken by the heuristic weights
+   *
+   * @param profiledAddresses map of builder's states => addresses of the
+   *                          corresponding states in the profiled DFA
+   */
+  DFABuilder.EdgeWeights edgeWeights(Map<State, Integer> profiledAddresses) {
+    return (source, edge) -> {
+      var a = profiledAddresses.get(source);
+      var b = profiledAddresses.get(edge.destinationState());
+      double hits = (a == null || b == null) ? 0 : edgeHits(a, b);
+      return hits + DFABuilder.HEURISTIC_WEIGHTS.weight(source, edge) * 1e-6;
+    };
+  }
+
+  /**
+   * Construct a report of the states that were visited, hottest first
+   */
+  public JSMap heatReport() {
+    var m = map();
+    m.put("bytes", mByteCount);
+    m.put("tokens", mTokenCount);
+
+    List<Integer> addresses = arrayList();
+    int stateCount = 0;
+    for (int addr = 0; addr < mGraph.length; addr = nextState(addr)) {
+      stateCount++;
+      if (mStateHits[addr] != 0)
+        addresses.add(addr);
+    }
+    m.put("states", stateCount);
+    m.put("cold_states", stateCount - addresses.size());
+    addresses.sort((a, b) -> Long.compare(mStateHits[b], mStateHits[a]));
+
+    var list = list();
+    for (int addr : addresses) {
+      var sm = map();
+      sm.put("address", addr);
+      sm.put("hits", mStateHits[addr]);
+      var edges = map();
+      int edgeCount = mGraph[addr + 1] & 0xff;
+      int p = addr + 2;
+      for (int e = 0; e < edgeCount; e++) {
+        int rangeCount = mGraph[p] & 0xff;
+        int destPos = p + 1 + 2 * rangeCount;
+        int dest = (mGraph[destPos] & 0xff) | ((mGraph[destPos + 1] & 0xff) << 8);
+        long hits = edgeHits(addr, dest);
+        if (hits != 0)
+          edges.put("" + dest, hits);
+        p = destPos + 2;
+      }
+      sm.put("edges", edges);
+      list.add(sm);
+    }
+    m.put("hot_states", list);
+    return m;
+  }
+
+  /**
+   * Get the address of the state following one
+   */
+  private int nextState(int addr) {
+    int edgeCount = mGraph[addr + 1] & 0xff;
+    int p = addr + 2;
+    for (int e = 0; e < edgeCount; e++)
+      p += 1 + 2 * (mGraph[p] & 0xff) + 2;
+    return p;
+  }
+
+  private static long edgeKey(int sourceAddress, int destAddress) {
+    return (((long) sourceAddress) << 32) | destAddress;
+  }
+
+  private final byte[] mGraph;
+  private final long[] mStateHits;
+  // Map of encoded (source, destination) addresses => number of times followed
+  private final Map<Long, Long> mEdgeHits = hashMap();
+  private long mByteCount;
+  private long mTokenCount;
+}
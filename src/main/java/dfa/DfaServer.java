@@ -0,0 +1,138 @@
+package dfa;
+
+import js.base.BaseObject;
+import js.file.Files;
+import js.json.JSMap;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static js.base.Tools.*;
+
+/**
+ * Compiles scripts on request, so clients (e.g. editors and build tools) avoid
+ * the cost of starting a JVM and warming it up for each compilation.
+ *
+ * Each request is a JSON map on a single line; each is answered by a JSON map
+ * on a single line:
+ *
+ * <pre>
+ *   request:   { "id" : "...", "script" : "&lt;rxp text&gt;" }
+ *          or  { "id" : "...", "input" : "foo.rxp" [, "output" : "foo.dfa"] }
+ *          or  { "id" : "...", "cmd" : "shutdown" }
+ *
+ *   response:  { "id" : "...", "ok" : true, "dfa" : {...}, "cached" : false, "ms" : 12 }
+ *          or  { "id" : "...", "ok" : true, "output" : "foo.dfa", ... }
+ *          or  { "id" : "...", "ok" : false, "error" : "..." }
+ * </pre>
+ *
+ * If an output file is given, the .dfa file is written (if it has changed)
+ * instead of being included in the response. The server runs until it reads
+ * a shutdown command, or the end of its input.
+ *
+ * The bootstrap DFA is only read and the predefined expressions only parsed
+ * once, and the results of recent compilations are cached (keyed by script
+ * text).
+ */
+public final class DfaServer extends BaseObject {
+
+  static final int MAX_CACHED_RESULTS = 64;
+
+  public DfaServer(Files files) {
+    mFiles = files;
+  }
+
+  public void run(InputStream input, OutputStream output) {
+    var out = new PrintStream(output, true, StandardCharsets.UTF_8);
+    var reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+    try {
+      while (true) {
+        var line = reader.readLine();
+        if (line == null)
+          break;
+        if (line.isBlank())
+          continue;
+        var request = parseRequest(line);
+        if (request != null && request.opt("cmd", "").equals("shutdown")) {
+          out.println(map().put("id", request.opt("id", "")).put("ok", true));
+          break;
+        }
+        out.println(request == null ? error("", "malformed request") : process(request));
+      }
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    }
+  }
+
+  private static JSMap parseRequest(String line) {
+    try {
+      return new JSMap(line);
+    } catch (Throwable t) {
+      return null;
+    }
+  }
+
+  /**
+   * Process a request, and construct its response
+   */
+  JSMap process(JSMap request) {
+    var id = request.opt("id", "");
+    try {
+      long startTime = System.currentTimeMillis();
+      String script = request.opt("script", (String) null);
+      var inputPath = request.opt("input", "");
+      if (script == null) {
+        if (inputPath.isEmpty())
+          return error(id, "no script or input file given");
+        script = Files.readString(new File(inputPath));
+      }
+
+      String content = mCache.get(script);
+      boolean cached = content != null;
+      if (!cached) {
+        var compiler = new DFACompiler();
+        var dfa = compiler.parse(script);
+        content = DfaOper.dfaFileContent(dfa, compiler.metadata());
+        mCache.put(script, content);
+      }
+
+      var response = map().put("id", id).put("ok", true);
+      var outputPath = request.opt("output", "");
+      if (outputPath.isEmpty()) {
+        response.put("dfa", new JSMap(content));
+      } else {
+        mFiles.writeIfChanged(new File(outputPath), content);
+        response.put("output", outputPath);
+      }
+      response.put("cached", cached);
+      response.put("ms", System.currentTimeMillis() - startTime);
+      log("processed request:", id, "cached:", cached);
+      return response;
+    } catch (Throwable t) {
+      return error(id, nullTo(t.getMessage(), t.toString()));
+    }
+  }
+
+  private static JSMap error(String id, String message) {
+    return map().put("id", id).put("ok", false).put("error", message);
+  }
+
+  private final Files mFiles;
+
+  // Cache of script text => .dfa file content, evicting the least recently used
+  //
+  private final Map<String, String> mCache = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > MAX_CACHED_RESULTS;
+    }
+  };
+}
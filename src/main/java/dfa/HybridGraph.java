@@ -0,0 +1,421 @@
+package dfa;
+
+import js.data.IntArray;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static js.base.Tools.*;
+
+/**
+ * An in-memory encoding of a DFA's graph in which each state uses whichever
+ * representation of its transitions is cheapest to evaluate:
+ *
+ * <pre>
+ *   NONE:    <header>                                  (no edges)
+ *   SINGLE:  <header> <first> <end> <target>           (a single range of codes)
+ *   SPARSE:  <header> <n> <first>*n <end>*n <target>*n  (sorted ranges; binary searched)
+ *   DENSE:   <header> <target>*128                     (indexed by code)
+ *   RUN:     <header> <length> <codes offset> <target of first code> <target>
+ *
+ *   <header> ::= <kind> | (1 + accepted token id, or 0) << 8
+ * </pre>
+ *
+ * A state is identified by its offset within the encoding (the start state's
+ * is zero), and targets are offsets, or -1 if there is no transition.
+ *
+ * The .dfa file format (and the graph read by the Lexer and Scanner classes)
+ * is unchanged; this encoding is constructed from the graph when it is loaded.
+ * Which states are dense is determined by the DFA's metadata.
+ *
+ * A RUN state heads a chain of states that each have a single edge labelled
+ * with a single code (e.g. the states matching a keyword), where none of the
+ * states after the first accepts a token; the chain's codes are stored
+ * separately (see matchRun()), so the whole chain can be followed with a
+ * single comparison. The states within the chain are still encoded, since
+ * they may be reached from elsewhere; so runs are purely a speedup for the
+ * cursor, and make the encoding slightly larger, not smaller.
+ */
+final class HybridGraph {
+
+  static final int KIND_NONE = 0;
+  static final int KIND_SINGLE = 1;
+  static final int KIND_SPARSE = 2;
+  static final int KIND_DENSE = 3;
+  static final int KIND_RUN = 4;
+
+  /**
+   * Chains shorter than this aren't worth encoding as runs
+   */
+  static final int MIN_RUN_LENGTH = 3;
+  static final int MAX_RUN_LENGTH = 64;
+
+  static HybridGraph encode(byte[] graph, DfaMetadata metadata) {
+    return encode(graph, metadata, true);
+  }
+
+  /**
+   * Construct an encoding, optionally without any RUN states
+   */
+  static HybridGraph encode(byte[] graph, DfaMetadata metadata, boolean runs) {
+    var h = new HybridGraph();
+    h.mRuns = runs;
+    h.build(graph, metadata);
+    return h;
+  }
+
+  /**
+   * Get the state reached from a state via a code, or -1 if none
+   */
+  int next(int state, int code) {
+    final int[] k = mCode;
+    switch (k[state] & 0xff) {
+      case KIND_SINGLE:
+        return (code >= k[state + 1] && code < k[state + 2]) ? k[state + 3] : -1;
+      case KIND_DENSE:
+        return k[state + 1 + code];
+      case KIND_RUN:
+        return (code == (mRunCodes[k[state + 2]] & 0xff)) ? k[state + 3] : -1;
+      case KIND_SPARSE: {
+        int n = k[state + 1];
+        int starts = state + 2;
+        // Find the last range whose first code is <= the code
+        int lo = 0;
+        int hi = n - 1;
+        int found = -1;
+        while (lo <= hi) {
+          int mid = (lo + hi) >>> 1;
+          if (k[starts + mid] <= code) {
+            found = mid;
+            lo = mid + 1;
+          } else
+            hi = mid - 1;
+        }
+        if (found >= 0 && code < k[starts + n + found])
+          return k[starts + 2 * n + found];
+        return -1;
+      }
+      default:
+        return -1;
+    }
+  }
+
+  /**
+   * Follow the chain of edges from a RUN state, if the input at a position
+   * matches its codes
+   *
+   * @return position following the matched codes, or -1 if they don't match
+   *         (including if the input ends before the chain does)
+   */
+  int matchRun(int state, byte[] input, int pos, int end) {
+    final int[] k = mCode;
+    int length = k[state + 1];
+    if (end - pos < length)
+      return -1;
+    int codes = k[state + 2];
+    // The codes are all less than 0x7f, so bytes can be compared without mapping them to codes
+    if (!Arrays.equals(input, pos, pos + length, mRunCodes, codes, codes + length))
+      return -1;
+    return pos + length;
+  }
+
+  /**
+   * Get the number of codes in the chain of a RUN state
+   */
+  int runLength(int state) {
+    return mCode[state + 1];
+  }
+
+  /**
+   * Get the state reached by following the chain of a RUN state
+   */
+  int runTarget(int state) {
+    return mCode[state + 4];
+  }
+
+  /**
+   * Get the token id accepted by a state, or -1 if it isn't an accepting state
+   */
+  int acceptedId(int state) {
+    return (mCode[state] >> 8) - 1;
+  }
+
+  int kind(int state) {
+    return mCode[state] & 0xff;
+  }
+
+  /**
+   * Get the size of the encoding; offsets of states are less than this
+   */
+  int size() {
+    return mCode.length;
+  }
+
+  /**
+   * Get the addresses (within the original graph) of the encoded states
+   */
+  int[] stateAddresses() {
+    return mStateAddresses;
+  }
+
+  /**
+   * Get the address (within the original graph) of the state at an offset
+   */
+  int addressOf(int offset) {
+    int index = Arrays.binarySearch(mStateOffsets, offset);
+    checkArgument(index >= 0, "no state at offset:", offset);
+    return mStateAddresses[index];
+  }
+
+  /**
+   * Get the offset of the state with a particular address in the original
+   * graph
+   */
+  int offsetOf(int address) {
+    return mAddressToOffset.get(address);
+  }
+
+  /**
+   * The transitions of a state, as sorted, disjoint ranges of codes
+   */
+  private static class Ranges {
+    int acceptedId;
+    int kind;
+    // If a RUN state, its codes and the address of the state following the chain
+    byte[] runCodes;
+    int runTargetAddress;
+    int count;
+    int[] firsts = new int[Util.MAX_CHAR_CODE];
+    int[] ends = new int[Util.MAX_CHAR_CODE];
+    int[] destAddresses = new int[Util.MAX_CHAR_CODE];
+
+    int size() {
+      return count;
+    }
+  }
+
+  private void build(byte[] graph, DfaMetadata metadata) {
+    List<Ranges> states = arrayList();
+    var addresses = IntArray.newBuilder();
+    Map<Integer, Ranges> stateMap = hashMap();
+
+    // Determine each state's ranges
+    int addr = 0;
+    do {
+      var r = readRanges(graph, addr);
+      states.add(r);
+      addresses.add(addr);
+      stateMap.put(addr, r);
+      addr = nextAddress(graph, addr);
+    } while (addr < graph.length);
+    mStateAddresses = addresses.array();
+
+    // Determine which states lie within a chain (i.e. are reached by a single code from a state
+    // whose chain continues through them); only the states heading chains are encoded as runs
+    Set<Integer> chainInteriors = hashSet();
+    if (mRuns) {
+      for (int i = 0; i < states.size(); i++) {
+        var r = states.get(i);
+        if (!hasRunCode(r) || chooseKind(r, metadata.isDense(mStateAddresses[i])) != KIND_SINGLE)
+          continue;
+        int target = r.destAddresses[0];
+        if (continuesRun(stateMap.get(target), target, metadata))
+          chainInteriors.add(target);
+      }
+    }
+
+    // Choose each state's kind, and determine its offset within the encoding
+    mAddressToOffset = hashMap();
+    mStateOffsets = new int[states.size()];
+    var runCodes = new ByteArrayOutputStream();
+    int offset = 0;
+    for (int i = 0; i < states.size(); i++) {
+      var r = states.get(i);
+      r.kind = chooseKind(r, metadata.isDense(mStateAddresses[i]));
+      if (r.kind == KIND_SINGLE && mRuns && !chainInteriors.contains(mStateAddresses[i])
+          && findRun(r, stateMap, metadata))
+        r.kind = KIND_RUN;
+      mAddressToOffset.put(mStateAddresses[i], offset);
+      mStateOffsets[i] = offset;
+      offset += encodedSize(r, r.kind);
+    }
+
+    // The final state stores nothing, and so has the same address as the state following it,
+    // or (if it is last) the length of the graph; it is never the target of a (character code) edge
+    if (!mAddressToOffset.containsKey(graph.length))
+      mAddressToOffset.put(graph.length, -1);
+
+    var code = new int[offset];
+    offset = 0;
+    for (var r : states) {
+      int kind = r.kind;
+      code[offset] = kind | ((r.acceptedId + 1) << 8);
+      int n = r.size();
+      switch (kind) {
+        case KIND_SINGLE:
+          code[offset + 1] = r.firsts[0];
+          code[offset + 2] = r.ends[0];
+          code[offset + 3] = mAddressToOffset.get(r.destAddresses[0]);
+          break;
+        case KIND_SPARSE:
+          code[offset + 1] = n;
+          for (int j = 0; j < n; j++) {
+            code[offset + 2 + j] = r.firsts[j];
+            code[offset + 2 + n + j] = r.ends[j];
+            code[offset + 2 + 2 * n + j] = mAddressToOffset.get(r.destAddresses[j]);
+          }
+          break;
+        case KIND_DENSE:
+          for (int c = 0; c < Util.MAX_CHAR_CODE; c++)
+            code[offset + 1 + c] = -1;
+          for (int j = 0; j < n; j++) {
+            int target = mAddressToOffset.get(r.destAddresses[j]);
+            for (int c = r.firsts[j]; c < r.ends[j]; c++)
+              code[offset + 1 + c] = target;
+          }
+          break;
+        case KIND_RUN:
+          code[offset + 1] = r.runCodes.length;
+          code[offset + 2] = runCodes.size();
+          code[offset + 3] = mAddressToOffset.get(r.destAddresses[0]);
+          code[offset + 4] = mAddressToOffset.get(r.runTargetAddress);
+          runCodes.writeBytes(r.runCodes);
+          break;
+      }
+      offset += encodedSize(r, kind);
+    }
+    mCode = code;
+    mRunCodes = runCodes.toByteArray();
+  }
+
+  /**
+   * Determine if a state with a single range heads a chain of states that can
+   * be encoded as a run; if so, store the chain's codes and target
+   */
+  private static boolean findRun(Ranges r, Map<Integer, Ranges> stateMap, DfaMetadata metadata) {
+    var codes = new ByteArrayOutputStream();
+    var s = r;
+    int target = -1;
+    while (codes.size() < MAX_RUN_LENGTH) {
+      if (!hasRunCode(s))
+        break;
+      codes.write(s.firsts[0]);
+      target = s.destAddresses[0];
+      s = stateMap.get(target);
+      if (s == r || !continuesRun(s, target, metadata))
+        break;
+    }
+    if (codes.size() < MIN_RUN_LENGTH)
+      return false;
+    r.runCodes = codes.toByteArray();
+    r.runTargetAddress = target;
+    return true;
+  }
+
+  /**
+   * Determine if a state has a single edge, labelled with a single code, that
+   * can be part of a run
+   */
+  private static boolean hasRunCode(Ranges r) {
+    return r.size() == 1 && r.ends[0] - r.firsts[0] == 1 && r.firsts[0] != Util.MAX_CHAR_CODE - 1;
+  }
+
+  /**
+   * Determine if a chain can continue through a state; it stops at a state
+   * that the cursor treats specially
+   */
+  private static boolean continuesRun(Ranges s, int address, DfaMetadata metadata) {
+    return s != null && s.acceptedId < 0 && !metadata.isDeadEnd(address) && metadata.selfLoopExits(address) == null;
+  }
+
+  private static int chooseKind(Ranges r, boolean dense) {
+    int n = r.size();
+    if (n == 0)
+      return KIND_NONE;
+    if (dense || n >= DfaMetadata.MIN_DENSE_RANGES)
+      return KIND_DENSE;
+    if (n == 1)
+      return KIND_SINGLE;
+    return KIND_SPARSE;
+  }
+
+  private static int encodedSize(Ranges r, int kind) {
+    switch (kind) {
+      case KIND_NONE:
+        return 1;
+      case KIND_SINGLE:
+        return 4;
+      case KIND_SPARSE:
+        return 2 + 3 * r.size();
+      case KIND_DENSE:
+        return 1 + Util.MAX_CHAR_CODE;
+      case KIND_RUN:
+        return 5;
+      default:
+        throw notSupported();
+    }
+  }
+
+  private static Ranges readRanges(byte[] graph, int addr) {
+    var r = new Ranges();
+    if (addr >= graph.length) {
+      // An empty graph
+      r.acceptedId = -1;
+      return r;
+    }
+    r.acceptedId = (graph[addr] & 0xff) - 1;
+
+    // Collect the ranges, indexed by first code
+    int[] ends = new int[Util.MAX_CHAR_CODE];
+    int[] dests = new int[Util.MAX_CHAR_CODE];
+    int edgeCount = graph[addr + 1] & 0xff;
+    int p = addr + 2;
+    for (int e = 0; e < edgeCount; e++) {
+      int rangeCount = graph[p] & 0xff;
+      int destPos = p + 1 + 2 * rangeCount;
+      int dest = (graph[destPos] & 0xff) | ((graph[destPos + 1] & 0xff) << 8);
+      for (int q = p + 1; q < destPos; q += 2) {
+        int first = graph[q] & 0xff;
+        ends[first] = first + (graph[q + 1] & 0xff);
+        dests[first] = dest;
+      }
+      p = destPos + 2;
+    }
+
+    // Emit them in order, merging adjacent ranges with the same destination
+    for (int first = 0; first < Util.MAX_CHAR_CODE; first++) {
+      if (ends[first] == 0)
+        continue;
+      int n = r.count;
+      if (n > 0 && r.ends[n - 1] == first && r.destAddresses[n - 1] == dests[first])
+        r.ends[n - 1] = ends[first];
+      else {
+        r.firsts[n] = first;
+        r.ends[n] = ends[first];
+        r.destAddresses[n] = dests[first];
+        r.count++;
+      }
+    }
+    return r;
+  }
+
+  private static int nextAddress(byte[] graph, int addr) {
+    if (addr >= graph.length)
+      return addr;
+    int edgeCount = graph[addr + 1] & 0xff;
+    int p = addr + 2;
+    for (int e = 0; e < edgeCount; e++)
+      p += 1 + 2 * (graph[p] & 0xff) + 2;
+    return p;
+  }
+
+  private int[] mCode;
+  private byte[] mRunCodes;
+  private int[] mStateAddresses;
+  private int[] mStateOffsets;
+  private Map<Integer, Integer> mAddressToOffset;
+  private boolean mRuns;
+}
@@ -0,0 +1,189 @@
+package dfa;
+
+import js.data.IntArray;
+import js.parsing.DFA;
+
+import static js.base.Tools.*;
+
+/**
+ * Retokenizes text after an edit, rescanning only the tokens that the edit
+ * could have affected.
+ *
+ * Every token is scanned from the DFA's start state, so the only state that
+ * needs to be stored at each token boundary is how far the scan looked ahead
+ * (see DfaCursor.scanEnd()). A token is affected by an edit if its scan
+ * reached the edit. Rescanning starts at the first affected token. It stops
+ * when a rescanned token ends, beyond the edit, at the (shifted) start of one
+ * of the previous tokens, since the remaining tokens can't have changed.
+ */
+public final class IncrementalLexer {
+
+  /**
+   * Construct a lexer for a DFA, using metadata derived from its graph alone.
+   * The graph doesn't record lexer modes, so a DFA compiled with modes is
+   * silently tokenized using its default mode only, rather than being rejected;
+   * pass the metadata from DfaMetadata.read() to detect this
+   */
+  public IncrementalLexer(DFA dfa) {
+    this(dfa, DfaMetadata.analyze(dfa));
+  }
+
+  public IncrementalLexer(DFA dfa, DfaMetadata metadata) {
+    // With lexer modes, the mode would also have to be stored at each token boundary
+    checkArgument(!metadata.hasModes(), "lexer modes aren't supported");
+    mCursor = new DfaCursor(dfa, metadata);
+  }
+
+  /**
+   * The tokens of a text, which completely cover it (an unrecognized byte
+   * produces a single-byte token with id DfaCursor.ID_UNKNOWN)
+   */
+  public static final class Tokens {
+
+    private Tokens(IntArray.Builder ids, IntArray.Builder starts, IntArray.Builder scanEnds, int textLength) {
+      mIds = ids.array();
+      mStarts = starts.array();
+      mScanEnds = scanEnds.array();
+      mTextLength = textLength;
+      mMaxScanEnds = new int[mScanEnds.length];
+      int max = 0;
+      for (int i = 0; i < mScanEnds.length; i++) {
+        max = Math.max(max, mScanEnds[i]);
+        mMaxScanEnds[i] = max;
+      }
+    }
+
+    public int size() {
+      return mIds.length;
+    }
+
+    public int id(int index) {
+      return mIds[index];
+    }
+
+    public int start(int index) {
+      return mStarts[index];
+    }
+
+    public int end(int index) {
+      return (index + 1 < mStarts.length) ? mStarts[index + 1] : mTextLength;
+    }
+
+    public int textLength() {
+      return mTextLength;
+    }
+
+    /**
+     * Find the first token whose scan extended beyond a position
+     */
+    private int firstAffected(int position) {
+      // Binary search the (nondecreasing) maximum scan ends
+      int lo = 0;
+      int hi = mMaxScanEnds.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (mMaxScanEnds[mid] > position)
+          hi = mid;
+        else
+          lo = mid + 1;
+      }
+      return lo;
+    }
+
+    private final int[] mIds;
+    private final int[] mStarts;
+    // Offset past the last byte examined while scanning each token, or (if the scan reached the
+    // end of the text) the text length + 1
+    private final int[] mScanEnds;
+    private final int[] mMaxScanEnds;
+    private final int mTextLength;
+  }
+
+  public Tokens tokenize(byte[] text) {
+    var ids = IntArray.newBuilder();
+    var starts = IntArray.newBuilder();
+    var scanEnds = IntArray.newBuilder();
+    mRescannedTokenCount = scan(text, 0, ids, starts, scanEnds, null, 0, 0, 0);
+    return new Tokens(ids, starts, scanEnds, text.length);
+  }
+
+  /**
+   * Retokenize a text after an edit
+   *
+   * @param previous     the tokens of the text before the edit
+   * @param text         the text after the edit
+   * @param editStart    offset of the first byte that was changed
+   * @param oldEditEnd   offset, in the previous text, just past the bytes that
+   *                     were replaced
+   * @param newEditEnd   offset, in the new text, just past the bytes that
+   *                     replaced them
+   */
+  public Tokens update(Tokens previous, byte[] text, int editStart, int oldEditEnd, int newEditEnd) {
+    int oldLength = previous.textLength();
+    checkArgument(editStart >= 0 && editStart <= oldEditEnd && oldEditEnd <= oldLength && editStart <= newEditEnd,
+        "bad edit:", editStart, oldEditEnd, newEditEnd);
+    checkArgument(text.length == oldLength + newEditEnd - oldEditEnd, "text length doesn't agree with edit");
+
+    // The tokens preceding the first affected one are unchanged
+    int first = previous.firstAffected(editStart);
+    var ids = IntArray.newBuilder();
+    var starts = IntArray.newBuilder();
+    var scanEnds = IntArray.newBuilder();
+    for (int i = 0; i < first; i++) {
+      ids.add(previous.mIds[i]);
+      starts.add(previous.mStarts[i]);
+      scanEnds.add(previous.mScanEnds[i]);
+    }
+    int pos = first < previous.size() ? previous.start(first) : oldLength;
+    mRescannedTokenCount = scan(text, pos, ids, starts, scanEnds, previous, first, newEditEnd,
+        newEditEnd - oldEditEnd);
+    return new Tokens(ids, starts, scanEnds, text.length);
+  }
+
+  /**
+   * Get the number of tokens scanned by the most recent call to tokenize() or
+   * update()
+   */
+  public int rescannedTokenCount() {
+    return mRescannedTokenCount;
+  }
+
+  /**
+   * Scan tokens from a position until the end of the text; or, if previous
+   * tokens are given, until they can be resumed (shifted by delta), from
+   * index firstPrevious onward, at a position at or beyond resumeFrom. Returns
+   * the number of tokens scanned
+   */
+  private int scan(byte[] text, int pos, IntArray.Builder ids, IntArray.Builder starts, IntArray.Builder scanEnds,
+      Tokens previous, int firstPrevious, int resumeFrom, int delta) {
+    var c = mCursor.withText(text, pos, text.length);
+    int j = firstPrevious;
+    int count = 0;
+    while (pos < text.length) {
+      if (previous != null && pos >= resumeFrom) {
+        int oldPos = pos - delta;
+        while (j < previous.size() && previous.start(j) < oldPos)
+          j++;
+        if (j < previous.size() && previous.start(j) == oldPos) {
+          // We're back in sync with the previous tokens; use the rest of them
+          for (; j < previous.size(); j++) {
+            ids.add(previous.mIds[j]);
+            starts.add(previous.mStarts[j] + delta);
+            scanEnds.add(previous.mScanEnds[j] + delta);
+          }
+          break;
+        }
+      }
+      ids.add(c.nextToken());
+      starts.add(pos);
+      int scanEnd = c.scanEnd();
+      scanEnds.add(scanEnd == text.length ? scanEnd + 1 : scanEnd);
+      pos = c.tokenEnd();
+      count++;
+    }
+    return count;
+  }
+
+  private final DfaCursor mCursor;
+  private int mRescannedTokenCount;
+}
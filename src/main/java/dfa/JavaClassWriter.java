@@ -0,0 +1,120 @@
+package dfa;
+
+import js.parsing.DFA;
+
+import java.io.File;
+import java.util.List;
+
+import static js.base.Tools.*;
+
+/**
+ * Generates the source of a Java class that embeds a compiled DFA, so it can
+ * be constructed without reading or parsing a .dfa file.
+ *
+ * The graph is stored as string constants, with each char holding one byte
+ * (ISO-8859-1); these are compact in the class file's constant pool, and the
+ * DFA is only constructed (by a holder class) when it is first requested.
+ */
+public final class JavaClassWriter {
+
+  /**
+   * Maximum number of bytes stored in a single string constant; each may
+   * occupy up to two bytes in the (modified UTF-8) constant pool, whose entries
+   * are limited to 65535 bytes
+   */
+  static final int MAX_CHUNK_LENGTH = 16_000;
+
+  public static String generate(DFA dfa, String packageName, String className) {
+    var sb = new StringBuilder();
+    sb.append("// Generated by 'dev dfa' tool (DO NOT EDIT)\n\n");
+    if (!packageName.isEmpty())
+      sb.append("package ").append(packageName).append(";\n\n");
+    sb.append("import java.nio.charset.StandardCharsets;\n\n");
+    sb.append("import js.parsing.DFA;\n\n");
+    sb.append("public final class ").append(className).append(" {\n\n");
+
+    sb.append("  public static DFA dfa() {\n");
+    sb.append("    return Holder.INSTANCE;\n");
+    sb.append("  }\n\n");
+
+    sb.append("  private static final class Holder {\n");
+    sb.append("    static final DFA INSTANCE = new DFA(DFA.VERSION, TOKEN_NAMES, graph());\n");
+    sb.append("  }\n\n");
+
+    sb.append("  private static byte[] graph() {\n");
+    sb.append("    var sb = new StringBuilder();\n");
+    sb.append("    for (var chunk : GRAPH)\n");
+    sb.append("      sb.append(chunk);\n");
+    sb.append("    return sb.toString().getBytes(StandardCharsets.ISO_8859_1);\n");
+    sb.append("  }\n\n");
+
+    sb.append("  private static final String[] TOKEN_NAMES = {\n");
+    for (var name : dfa.tokenNames())
+      sb.append("      ").append(quote(name)).append(",\n");
+    sb.append("  };\n\n");
+
+    sb.append("  private static final String[] GRAPH = {\n");
+    for (var chunk : graphLiterals(dfa.graph()))
+      sb.append("      ").append(chunk).append(",\n");
+    sb.append("  };\n");
+    sb.append("}\n");
+    return sb.toString();
+  }
+
+  /**
+   * Encode a graph as a sequence of Java string literals
+   */
+  static List<String> graphLiterals(byte[] graph) {
+    List<String> result = arrayList();
+    for (int start = 0; start < graph.length; start += MAX_CHUNK_LENGTH) {
+      int end = Math.min(graph.length, start + MAX_CHUNK_LENGTH);
+      var sb = new StringBuilder("\"");
+      for (int i = start; i < end; i++) {
+        int b = graph[i] & 0xff;
+        if (b >= 0x20 && b < 0x7f && b != '"' && b != '\\') {
+          sb.append((char) b);
+        } else {
+          // Use (three digit) octal escapes; unicode escapes are translated before the
+          // source is tokenized, so would be misinterpreted for some codes (e.g. linefeed)
+          sb.append(String.format("\\%03o", b));
+        }
+      }
+      sb.append('"');
+      result.add(sb.toString());
+    }
+    return result;
+  }
+
+  private static String quote(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /**
+   * Infer the package of a Java source file from its path, i.e. the
+   * directories following the last 'java' directory; or an empty string if
+   * there is no such directory
+   */
+  public static String inferPackage(File sourceFile) {
+    var parent = sourceFile.getAbsoluteFile().getParentFile();
+    List<String> dirs = arrayList();
+    while (parent != null) {
+      if (parent.getName().equals("java"))
+        break;
+      dirs.add(0, parent.getName());
+      parent = parent.getParentFile();
+    }
+    if (parent == null)
+      return "";
+    return String.join(".", dirs);
+  }
+
+  /**
+   * Get the class name corresponding to a Java source file
+   */
+  public static String className(File sourceFile) {
+    var name = sourceFile.getName();
+    if (name.endsWith(".java"))
+      name = name.substring(0, name.length() - ".java".length());
+    return name;
+  }
+}
@@ -2,17 +2,17 @@ package dfa;
 
 import js.base.BaseObject;
 import js.base.Pair;
+import js.data.IntArray;
 
 import static js.base.Tools.*;
 import static dfa.Util.*;
 
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-
 import java.util.Set;
-import java.util.TreeSet;
 
 /**
  * Converts NFAs (nondeterministic, finite state automata) to minimal DFAs.
@@ -38,7 +38,10 @@ final class NFAToDFA extends BaseObject {
   /**
    * Convert an NFA to a DFA; return the new start state
    */
-  private State convertNFAToDFA(State start) {
+  State convertNFAToDFA(State start) {
+    mFactory = start.factory();
+    mClosureHits = 0;
+    mClosureMisses = 0;
     partitionEdges(start);
 
     // Reverse this NFA, convert to DFA, then reverse it, and convert it again.  
@@ -50,6 +53,7 @@ final class NFAToDFA extends BaseObject {
       log(stateMachineToString(start, "after reverse #1"));
 
     start = cvtNFAToDFA(start);
+    prune(start);
 
     if (verbose())
       log("reversing #2");
@@ -57,14 +61,17 @@ final class NFAToDFA extends BaseObject {
     if (verbose())
       log(stateMachineToString(start, "after reverse #2"));
     start = cvtNFAToDFA(start);
+    prune(start);
     return normalizeStates(start);
   }
 
-  private static CodeSet constructKeyForStateCollection(Collection<State> states) {
-    CodeSet keySet = new CodeSet();
-    for (State s : states)
-      keySet.add(s.id());
-    return keySet;
+  /**
+   * Remove any states that can't lead to a final state
+   */
+  private void prune(State start) {
+    int removed = pruneNonProductiveStates(start);
+    if (removed != 0)
+      log("pruned non-productive states:", removed);
   }
 
   /**
@@ -74,9 +81,10 @@ final class NFAToDFA extends BaseObject {
     log("---------- cvtNFAToDFA -------------");
     mNFAStateSetToDFAStateMap.clear();
     mDFAStateToNFAStatesMap.clear();
+    prepareClosures(start);
 
     log("creating start state");
-    start = create_dfa_state_if_necessary(eps_closure(start)).first;
+    start = create_dfa_state_if_necessary(closure(mStateIndexMap.get(start))).first;
 
     List<State> unmarked = arrayList();
     unmarked.add(start);
@@ -84,20 +92,21 @@ final class NFAToDFA extends BaseObject {
     while (nonEmpty(unmarked)) {
       State dfaState = pop(unmarked);
 
-      Collection<State> nfaStateSubset = mDFAStateToNFAStatesMap.get(dfaState);
+      BitSet nfaStateSubset = mDFAStateToNFAStatesMap.get(dfaState);
       if (nfaStateSubset == null)
         badState("dfaState had no entry in sorted_nfa_state_id_lists:", dfaState);
 
       if (verbose())
-        log("popped DFA state:", dfaState, "with NFA states:", State.toString(nfaStateSubset));
+        log("popped DFA state:", dfaState, "with NFA states:", State.toString(statesInSubset(nfaStateSubset)));
 
-      // Map of CodeSet => set of NFA states
-      // 
-      // The sets should be TreeSets, for deterministic results
+      // Map of CodeSet => epsilon closure of the NFA states reached via that CodeSet
       //
-      Map<CodeSet, TreeSet<State>> moveMap = treeMap();
+      // The map should be a TreeMap, for deterministic results
+      //
+      Map<CodeSet, BitSet> moveMap = treeMap();
 
-      for (State nfaState : nfaStateSubset) {
+      for (int i = nfaStateSubset.nextSetBit(0); i >= 0; i = nfaStateSubset.nextSetBit(i + 1)) {
+        State nfaState = mStates[i];
         log("...processing NFA state:", nfaState);
 
         for (Edge nfaEdge : nfaState.edges()) {
@@ -106,7 +115,7 @@ final class NFAToDFA extends BaseObject {
           CodeSet codeSet = nfaEdge.codeSet();
 
           // This CodeSet is guaranteed to not overlap any other (distinct) CodeSet.
-          // Add the destination state to a list keyed to this CodeSet.
+          // Add the destination state's closure to the set keyed to this CodeSet.
 
           // If the code set contains epsilon, we can assume it contains only epsilon
           // (because of the edge partitioning we did earlier);
@@ -115,14 +124,14 @@ final class NFAToDFA extends BaseObject {
           if (codeSet.contains(EPSILON))
             continue;
 
-          TreeSet<State> nfaStates = moveMap.get(codeSet);
+          BitSet nfaStates = moveMap.get(codeSet);
           if (nfaStates == null) {
-            nfaStates = treeSet();
+            nfaStates = new BitSet();
             moveMap.put(codeSet, nfaStates);
           }
-          nfaStates.add(nfaEdge.destinationState());
+          nfaStates.or(closure(mStateIndexMap.get(nfaEdge.destinationState())));
           if (verbose())
-            log("adding state:", nfaEdge.destinationState().id(), "to the list corresponding to CodeSet",
+            log("adding closure of state:", nfaEdge.destinationState().id(), "to the set corresponding to CodeSet",
                 codeSet);
         }
       }
@@ -130,12 +139,10 @@ final class NFAToDFA extends BaseObject {
       // Process each CodeSet->[NFA State] mapping, and generate a DFA state for the [NFA State] subset
       // (if none exists)
 
-      for (Entry<CodeSet, TreeSet<State>> moveMapEntry : moveMap.entrySet()) {
+      for (Entry<CodeSet, BitSet> moveMapEntry : moveMap.entrySet()) {
         CodeSet codeSet = moveMapEntry.getKey();
-        Set<State> nfaStates = moveMapEntry.getValue();
+        BitSet nfaStates = moveMapEntry.getValue();
         log("processing map entry", codeSet, "=>", nfaStates);
-        eps_closure(nfaStates);
-        log("NFA states e-closure:", nfaStates);
 
         var result =
             create_dfa_state_if_necessary(nfaStates);
@@ -150,6 +157,7 @@ final class NFAToDFA extends BaseObject {
         addEdge(dfaState, codeSet, dfaDestState);
       }
     }
+    log("closure cache hits:", mClosureHits, "misses:", mClosureMisses);
     if (verbose())
       log(stateMachineToString(start, "after nfa -> dfa conversion"));
     return start;
@@ -161,27 +169,26 @@ final class NFAToDFA extends BaseObject {
    *
    * Returns DFA state, and true if state did not already exist
    */
-  private Pair<State, Boolean> create_dfa_state_if_necessary(Collection<State> stateSet) {
+  private Pair<State, Boolean> create_dfa_state_if_necessary(BitSet stateSet) {
     boolean createdFlag = false;
 
-    CodeSet keySet = constructKeyForStateCollection(stateSet);
     if (verbose())
-      log("create_dfa_state_if_nec?", keySet);
+      log("create_dfa_state_if_nec?", stateSet);
 
-    State newState = mNFAStateSetToDFAStateMap.get(keySet);
+    State newState = mNFAStateSetToDFAStateMap.get(stateSet);
     if (verbose())
       log("...existing state:", newState);
 
     if (newState == null) {
       createdFlag = true;
-      newState = new State();
+      newState = mFactory.newState();
       // Determine if any of the NFA states were final states
-      for (State nfaState : stateSet)
-        if (nfaState.finalState()) {
+      for (int i = stateSet.nextSetBit(0); i >= 0; i = stateSet.nextSetBit(i + 1))
+        if (mStates[i].finalState()) {
           newState.setFinal(true);
           break;
         }
-      mNFAStateSetToDFAStateMap.put(keySet, newState);
+      mNFAStateSetToDFAStateMap.put(stateSet, newState);
       mDFAStateToNFAStatesMap.put(newState, stateSet);
       if (verbose())
         log("...stored new DFA state:", newState.toString(true));
@@ -189,39 +196,211 @@ final class NFAToDFA extends BaseObject {
     return pair(newState, createdFlag);
   }
 
+  private List<State> statesInSubset(BitSet subset) {
+    List<State> states = arrayList();
+    for (int i = subset.nextSetBit(0); i >= 0; i = subset.nextSetBit(i + 1))
+      states.add(mStates[i]);
+    return states;
+  }
 
   /**
-   * Calculate the epsilon closure of a set of NFA states
+   * Index the NFA states, and find the strongly connected components of the
+   * subgraph formed by the epsilon edges. The epsilon closure of each
+   * component is calculated (once) when it is first needed
    */
-  private Set<State> eps_closure(Set<State> stateSet) {
-    List<State> stk = arrayList();
-    stk.addAll(stateSet);
-    while (nonEmpty(stk)) {
-      State s = pop(stk);
-      for (Edge edge : s.edges()) {
-        if (edge.contains(EPSILON)) {
-          if (stateSet.add(edge.destinationState()))
-            push(stk, edge.destinationState());
+  void prepareClosures(State start) {
+    // Index the states in order of their debug ids, so the subsets are deterministic
+    var reachable = reachableStates(start);
+    reachable.sort(null);
+    int n = reachable.size();
+    mStates = reachable.toArray(new State[0]);
+    mStateIndexMap = hashMap();
+    for (int i = 0; i < n; i++)
+      mStateIndexMap.put(mStates[i], i);
+
+    int[][] epsSuccessors = new int[n][];
+    for (int i = 0; i < n; i++) {
+      var succ = IntArray.newBuilder();
+      for (Edge edge : mStates[i].edges())
+        if (edge.contains(EPSILON))
+          succ.add(mStateIndexMap.get(edge.destinationState()));
+      epsSuccessors[i] = succ.array();
+    }
+
+    findComponents(epsSuccessors);
+
+    // Determine the members of each component, and the other components reachable
+    // from it by a single epsilon edge
+    int numComp = mComponentMembers.size();
+    List<Set<Integer>> compSuccessors = arrayList();
+    for (int c = 0; c < numComp; c++)
+      compSuccessors.add(treeSet());
+    for (int v = 0; v < n; v++) {
+      int c = mStateComponent[v];
+      for (int w : epsSuccessors[v])
+        if (mStateComponent[w] != c)
+          compSuccessors.get(c).add(mStateComponent[w]);
+    }
+    mComponentSuccessors = new int[numComp][];
+    for (int c = 0; c < numComp; c++) {
+      var succ = compSuccessors.get(c);
+      var a = new int[succ.size()];
+      int j = 0;
+      for (int x : succ)
+        a[j++] = x;
+      mComponentSuccessors[c] = a;
+    }
+    mComponentClosures = new BitSet[numComp];
+  }
+
+  /**
+   * Find the strongly connected components of the epsilon subgraph, using
+   * (an iterative version of) Tarjan's algorithm
+   */
+  private void findComponents(int[][] successors) {
+    int n = successors.length;
+    mStateComponent = new int[n];
+    mComponentMembers = arrayList();
+
+    int[] order = new int[n];
+    int[] lowLink = new int[n];
+    int[] edgeCursor = new int[n];
+    boolean[] onStack = new boolean[n];
+    Arrays.fill(order, -1);
+    List<Integer> stack = arrayList();
+    List<Integer> callStack = arrayList();
+    int counter = 0;
+
+    for (int root = 0; root < n; root++) {
+      if (order[root] >= 0)
+        continue;
+      order[root] = lowLink[root] = counter++;
+      push(stack, root);
+      onStack[root] = true;
+      push(callStack, root);
+
+      while (nonEmpty(callStack)) {
+        int v = callStack.get(callStack.size() - 1);
+        if (edgeCursor[v] < successors[v].length) {
+          int w = successors[v][edgeCursor[v]++];
+          if (order[w] < 0) {
+            order[w] = lowLink[w] = counter++;
+            push(stack, w);
+            onStack[w] = true;
+            push(callStack, w);
+          } else if (onStack[w])
+            lowLink[v] = Math.min(lowLink[v], order[w]);
+          continue;
+        }
+        pop(callStack);
+        if (nonEmpty(callStack)) {
+          int u = callStack.get(callStack.size() - 1);
+          lowLink[u] = Math.min(lowLink[u], lowLink[v]);
+        }
+        if (lowLink[v] == order[v]) {
+          // v is the root of a component; its members are on the stack
+          int c = mComponentMembers.size();
+          var members = new BitSet();
+          int w;
+          do {
+            w = pop(stack);
+            onStack[w] = false;
+            mStateComponent[w] = c;
+            members.set(w);
+          } while (w != v);
+          mComponentMembers.add(members);
         }
       }
     }
-    return stateSet;
   }
 
-  private Set<State> eps_closure(State state) {
-    // The set should be a TreeSet, so the order is deterministic (based on state's debug ids)
-    Set<State> set = treeSet();
-    set.add(state);
-    return eps_closure(set);
+  /**
+   * Get the epsilon closure of an NFA state, as a set of state indices. The
+   * returned set must not be modified
+   */
+  private BitSet closure(int stateIndex) {
+    int comp = mStateComponent[stateIndex];
+    var result = mComponentClosures[comp];
+    if (result != null) {
+      mClosureHits++;
+      return result;
+    }
+
+    // Calculate the closures of this component and any reachable ones that haven't
+    // been calculated yet, in post order (the component graph is acyclic)
+    List<Integer> stack = arrayList();
+    push(stack, comp);
+    while (nonEmpty(stack)) {
+      int c = stack.get(stack.size() - 1);
+      if (mComponentClosures[c] != null) {
+        pop(stack);
+        continue;
+      }
+      boolean ready = true;
+      for (int d : mComponentSuccessors[c]) {
+        if (mComponentClosures[d] == null) {
+          push(stack, d);
+          ready = false;
+        }
+      }
+      if (!ready)
+        continue;
+      pop(stack);
+      var closure = (BitSet) mComponentMembers.get(c).clone();
+      for (int d : mComponentSuccessors[c])
+        closure.or(mComponentClosures[d]);
+      mComponentClosures[c] = closure;
+      mClosureMisses++;
+    }
+    return mComponentClosures[comp];
+  }
+
+  /**
+   * Get the epsilon closure of an NFA state, in order of debug id; the NFA must
+   * have been passed to prepareClosures()
+   */
+  List<State> closure(State state) {
+    return statesInSubset(closure(mStateIndexMap.get(state)));
+  }
+
+  /**
+   * Get the number of closure lookups during the last conversion that were
+   * satisfied by an already calculated component closure
+   */
+  int closureHits() {
+    return mClosureHits;
   }
 
-  // A map of NFA id sets to NFA states.
-  // Each NFA id set is represented by a CodeSet, since they support equals+hashcode methods
+  /**
+   * Get the number of component closures calculated during the last conversion
+   */
+  int closureMisses() {
+    return mClosureMisses;
+  }
+
+  private StateFactory mFactory;
+
+  // A map of NFA state index sets to DFA states
   //
-  private final Map<CodeSet, State> mNFAStateSetToDFAStateMap = hashMap();
+  private final Map<BitSet, State> mNFAStateSetToDFAStateMap = hashMap();
 
-  // Map of { DFA State -> [NFA state] }
+  // Map of { DFA State -> [NFA state index] }
   //
-  private final Map<State, Collection<State>> mDFAStateToNFAStatesMap = hashMap();
+  private final Map<State, BitSet> mDFAStateToNFAStatesMap = hashMap();
+
+  // The NFA states being converted, in order of their debug ids, and the inverse map
+  //
+  private State[] mStates;
+  private Map<State, Integer> mStateIndexMap;
+
+  // The strongly connected components of the NFA's epsilon subgraph
+  //
+  private int[] mStateComponent;
+  private List<BitSet> mComponentMembers;
+  private int[][] mComponentSuccessors;
+  private BitSet[] mComponentClosures;
+
+  private int mClosureHits;
+  private int mClosureMisses;
 
 }
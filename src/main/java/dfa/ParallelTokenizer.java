@@ -0,0 +1,234 @@
+package dfa;
+
+import js.data.IntArray;
+import js.parsing.DFA;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static js.base.Tools.*;
+
+/**
+ * Tokenizes a large buffer by splitting it into chunks that are scanned
+ * concurrently.
+ *
+ * Each chunk (other than the first) begins just after a boundary byte (by
+ * default, a linefeed), and is scanned speculatively, on the assumption that a
+ * token starts there. The chunks are then stitched together in order: if the
+ * tokens of the previous chunk end exactly where a speculative token begins,
+ * the remaining speculative tokens are used as-is; otherwise (e.g. the boundary
+ * byte was within a string or comment), tokens are scanned sequentially until
+ * one ends where a speculative token begins.
+ *
+ * The results are thus identical to a sequential scan; the speedup depends on
+ * how often the boundary byte lies between tokens, as it does for JSON-lines
+ * and log files.
+ */
+public final class ParallelTokenizer {
+
+  /**
+   * Construct a tokenizer for a DFA, using metadata derived from its graph alone.
+   * The graph doesn't record lexer modes, so a DFA compiled with modes is
+   * silently tokenized using its default mode only, rather than being rejected;
+   * pass the metadata from DfaMetadata.read() to detect this
+   */
+  public ParallelTokenizer(DFA dfa) {
+    this(dfa, DfaMetadata.analyze(dfa));
+  }
+
+  public ParallelTokenizer(DFA dfa, DfaMetadata metadata) {
+    // With lexer modes, a chunk's tokens would depend on the mode in effect at its start
+    checkArgument(!metadata.hasModes(), "lexer modes aren't supported");
+    mDfa = dfa;
+    mMetadata = metadata;
+  }
+
+  public ParallelTokenizer withExecutor(ExecutorService executor) {
+    mExecutor = executor;
+    return this;
+  }
+
+  public ParallelTokenizer withChunkCount(int chunkCount) {
+    checkArgument(chunkCount > 0, "bad chunk count:", chunkCount);
+    mChunkCount = chunkCount;
+    return this;
+  }
+
+  public ParallelTokenizer withMinChunkSize(int minChunkSize) {
+    checkArgument(minChunkSize > 0, "bad chunk size:", minChunkSize);
+    mMinChunkSize = minChunkSize;
+    return this;
+  }
+
+  /**
+   * Set the byte that is assumed to (usually) lie between tokens
+   */
+  public ParallelTokenizer withBoundary(int boundaryByte) {
+    mBoundaryByte = (byte) boundaryByte;
+    return this;
+  }
+
+  /**
+   * The tokens produced by a scan. Since the tokens completely cover the text
+   * (an unrecognized byte produces a single-byte token with id
+   * DfaCursor.ID_UNKNOWN), each token ends where the next one starts
+   */
+  public static final class Tokens {
+
+    private Tokens(int[] ids, int[] starts, int textEnd) {
+      mIds = ids;
+      mStarts = starts;
+      mTextEnd = textEnd;
+    }
+
+    public int size() {
+      return mIds.length;
+    }
+
+    public int id(int index) {
+      return mIds[index];
+    }
+
+    public int start(int index) {
+      return mStarts[index];
+    }
+
+    public int end(int index) {
+      return (index + 1 < mStarts.length) ? mStarts[index + 1] : mTextEnd;
+    }
+
+    private final int[] mIds;
+    private final int[] mStarts;
+    private final int mTextEnd;
+  }
+
+  public Tokens tokenize(byte[] text) {
+    var chunkStarts = chunkStarts(text);
+    int numChunks = chunkStarts.size() - 1;
+
+    List<Chunk> chunks = arrayList();
+    if (numChunks == 1) {
+      chunks.add(scanChunk(text, chunkStarts.get(0), chunkStarts.get(1)));
+    } else {
+      var executor = mExecutor;
+      if (executor == null)
+        executor = ForkJoinPool.commonPool();
+      List<Future<Chunk>> futures = arrayList();
+      for (int i = 0; i < numChunks; i++) {
+        int start = chunkStarts.get(i);
+        int end = chunkStarts.get(i + 1);
+        futures.add(executor.submit(() -> scanChunk(text, start, end)));
+      }
+      try {
+        for (var f : futures)
+          chunks.add(f.get());
+      } catch (Throwable t) {
+        throw asRuntimeException(t);
+      }
+    }
+    return stitch(text, chunks);
+  }
+
+  /**
+   * Determine the chunk boundaries; returns a list of chunk start offsets,
+   * followed by the text length
+   */
+  private IntArray.Builder chunkStarts(byte[] text) {
+    int chunkCount = mChunkCount;
+    if (chunkCount == 0)
+      chunkCount = Runtime.getRuntime().availableProcessors();
+    chunkCount = Math.max(1, Math.min(chunkCount, text.length / mMinChunkSize));
+    int nominalSize = text.length / chunkCount;
+
+    var starts = IntArray.newBuilder();
+    starts.add(0);
+    int prev = 0;
+    for (int i = 1; i < chunkCount; i++) {
+      int s = Math.max(prev + 1, i * nominalSize);
+      while (s < text.length && text[s - 1] != mBoundaryByte)
+        s++;
+      if (s >= text.length)
+        break;
+      starts.add(s);
+      prev = s;
+    }
+    starts.add(text.length);
+    return starts;
+  }
+
+  /**
+   * The tokens produced by speculatively scanning a chunk
+   */
+  private static class Chunk {
+    int start;
+    int end;
+    IntArray.Builder ids = IntArray.newBuilder();
+    IntArray.Builder starts = IntArray.newBuilder();
+    // The end of the last token, which may lie beyond the end of the chunk
+    int tokensEnd;
+  }
+
+  private Chunk scanChunk(byte[] text, int start, int end) {
+    var c = new Chunk();
+    c.start = start;
+    c.end = end;
+    var cursor = new DfaCursor(mDfa, mMetadata).withText(text, start, text.length);
+    while (cursor.position() < end) {
+      c.ids.add(cursor.nextToken());
+      c.starts.add(cursor.tokenStart());
+    }
+    c.tokensEnd = cursor.position();
+    return c;
+  }
+
+  private Tokens stitch(byte[] text, List<Chunk> chunks) {
+    var ids = IntArray.newBuilder();
+    var starts = IntArray.newBuilder();
+    var cursor = new DfaCursor(mDfa, mMetadata);
+
+    int pos = 0;
+    for (var chunk : chunks) {
+      int count = chunk.ids.size();
+      int j = 0;
+      while (pos < chunk.end) {
+        while (j < count && chunk.starts.get(j) < pos)
+          j++;
+        if (j < count && chunk.starts.get(j) == pos) {
+          // We're in sync with the speculative tokens; use the rest of them
+          for (; j < count; j++) {
+            ids.add(chunk.ids.get(j));
+            starts.add(chunk.starts.get(j));
+          }
+          pos = chunk.tokensEnd;
+          break;
+        }
+        // Not in sync; scan a token sequentially
+        cursor.withText(text, pos, text.length);
+        ids.add(cursor.nextToken());
+        starts.add(pos);
+        pos = cursor.tokenEnd();
+        mResyncTokenCount++;
+      }
+    }
+    checkState(pos == text.length, "stitched tokens don't cover text");
+    return new Tokens(ids.array(), starts.array(), text.length);
+  }
+
+  /**
+   * Get the number of tokens (so far) that had to be scanned sequentially
+   * because a speculative chunk was out of sync
+   */
+  public int resyncTokenCount() {
+    return mResyncTokenCount;
+  }
+
+  private final DFA mDfa;
+  private final DfaMetadata mMetadata;
+  private ExecutorService mExecutor;
+  private int mChunkCount;
+  private int mMinChunkSize = 64 * 1024;
+  private byte mBoundaryByte = '\n';
+  private int mResyncTokenCount;
+}
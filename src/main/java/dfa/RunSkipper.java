@@ -0,0 +1,110 @@
+package dfa;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+import static js.base.Tools.*;
+import static dfa.Util.*;
+
+/**
+ * Skips over a run of input bytes that keep a DFA within a self-looping state.
+ *
+ * If the state can only be exited by a few character codes (plus, optionally,
+ * every code below some limit, e.g. the control characters), the bytes are
+ * examined eight at a time (SWAR, 'SIMD within a register'), testing each word
+ * for any of the exit codes at once; otherwise, a lookup table is consulted for
+ * each byte.
+ */
+final class RunSkipper {
+
+  /**
+   * The maximum number of exit codes for which SWAR scanning is used
+   */
+  private static final int MAX_SWAR_EXITS = 5;
+
+  private static final long ONES = 0x0101010101010101L;
+  private static final long HIGH_BITS = 0x8080808080808080L;
+
+  private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+  /**
+   * @param exitCodes the character codes (0..MAX_CHAR_CODE-1) that leave the
+   *                  state; as in DfaCursor.charCode(), the code
+   *                  MAX_CHAR_CODE-1 also represents every non-ASCII byte
+   */
+  RunSkipper(CodeSet exitCodes) {
+    checkArgument(exitCodes.contains(0), "exit codes must include zero");
+    mExitCodes = exitCodes;
+    mExitTable = new boolean[256];
+    for (int b = 0; b < 256; b++)
+      mExitTable[b] = exitCodes.contains(DfaCursor.charCode((byte) b));
+
+    // Every code below this limit is an exit code (the code zero never labels an edge,
+    // so it is always an exit code)
+    int lowLimit = exitCodes.elements()[1];
+    mLowLimitPattern = ONES * lowLimit;
+    mHighBitExits = exitCodes.contains(MAX_CHAR_CODE - 1);
+
+    var swarBytes = codes(exitCodes.difference(CodeSet.withRange(0, lowLimit)));
+    if (swarBytes.length <= MAX_SWAR_EXITS) {
+      mSwarPatterns = new long[swarBytes.length];
+      for (int i = 0; i < swarBytes.length; i++)
+        mSwarPatterns[i] = ONES * swarBytes[i];
+    }
+  }
+
+  CodeSet exitCodes() {
+    return mExitCodes;
+  }
+
+  /**
+   * Return the offset of the first byte at or after start that is an exit
+   * code, or end if there is none
+   */
+  int skip(byte[] input, int start, int end) {
+    int pos = start;
+    var patterns = mSwarPatterns;
+    if (patterns != null) {
+      while (pos + Long.BYTES <= end) {
+        long word = (long) LONGS.get(input, pos);
+        long found = (word - mLowLimitPattern) & ~word & HIGH_BITS;
+        if (mHighBitExits)
+          found |= word & HIGH_BITS;
+        for (long p : patterns) {
+          long v = word ^ p;
+          found |= (v - ONES) & ~v & HIGH_BITS;
+        }
+        if (found != 0)
+          return pos + (Long.numberOfTrailingZeros(found) >>> 3);
+        pos += Long.BYTES;
+      }
+    }
+    var table = mExitTable;
+    while (pos < end && !table[input[pos] & 0xff])
+      pos++;
+    return pos;
+  }
+
+  /**
+   * Get the individual codes within a CodeSet, or an array larger than
+   * MAX_SWAR_EXITS if there are too many of them
+   */
+  private static int[] codes(CodeSet codeSet) {
+    var result = new int[codeSet.size()];
+    if (result.length <= MAX_SWAR_EXITS) {
+      var elem = codeSet.elements();
+      int j = 0;
+      for (int i = 0; i < elem.length; i += 2)
+        for (int c = elem[i]; c < elem[i + 1]; c++)
+          result[j++] = c;
+    }
+    return result;
+  }
+
+  private final CodeSet mExitCodes;
+  private final boolean[] mExitTable;
+  private final long mLowLimitPattern;
+  private final boolean mHighBitExits;
+  private long[] mSwarPatterns;
+}
@@ -31,20 +31,41 @@ import static dfa.Util.*;
 
 public final class State implements Comparable<State> {
 
+  /**
+   * Construct a state using the default StateFactory; for test purposes only.
+   * The compiler constructs its states via its own StateFactory
+   */
+  public State() {
+    this(false);
+  }
+
+  public State(boolean finalState) {
+    this(StateFactory.defaultFactory(), finalState);
+  }
+
   public State(boolean finalState, List<Edge> edges) {
-    mId = sNextId++;
-    mFinalState = finalState;
-    if (edges == null)
-      edges = arrayList();
-    setEdges(edges);
+    this(finalState);
+    if (edges != null)
+      setEdges(edges);
   }
 
-  public State() {
-    this(false, null);
+  private State(StateFactory factory, boolean finalState) {
+    this(factory, factory.nextId(), finalState);
   }
 
-  public State(boolean finalState) {
-    this(finalState, null);
+  State(StateFactory factory, int id, boolean finalState) {
+    mFactory = factory;
+    mId = id;
+    mFinalState = finalState;
+    mEdges = arrayList();
+  }
+
+  /**
+   * Get the factory that constructed this state; new states that are derived
+   * from it should be constructed by the same one
+   */
+  public StateFactory factory() {
+    return mFactory;
   }
 
   @Override
@@ -101,7 +122,7 @@ public final class State implements Comparable<State> {
    * For test purposes only
    */
   public static void resetIds() {
-    sNextId = 100;
+    StateFactory.resetDefaultFactory();
   }
 
   public static String toString(Iterable<State> states) {
@@ -117,10 +138,6 @@ public final class State implements Comparable<State> {
     return sb.toString();
   }
 
-  private static int sNextId = 100;
-
-
-
   public static int edgeLabelToTokenId(int edgeLabel) {
     return edgeLabel - TOKEN_ID_START;
   }
@@ -129,6 +146,7 @@ public final class State implements Comparable<State> {
     return tokenId + TOKEN_ID_START;
   }
 
+  private final StateFactory mFactory;
   private int mId;
   private List<Edge> mEdges;
   private boolean mFinalState;
@@ -0,0 +1,56 @@
+package dfa;
+
+/**
+ * Constructs states, assigning each a debug id that is unique within the
+ * factory.
+ *
+ * Each compilation uses its own factory, so the ids (and hence the orderings of
+ * state sets, and the compiled DFA) don't depend upon what else has been
+ * compiled, and separate compilations can run concurrently. A factory is not
+ * itself thread safe.
+ */
+public final class StateFactory {
+
+  public static final int FIRST_ID = 100;
+
+  public StateFactory() {
+    mNextId = FIRST_ID;
+  }
+
+  /**
+   * Construct a factory whose ids follow those already assigned by another
+   */
+  StateFactory(StateFactory predecessor) {
+    mNextId = predecessor.mNextId;
+  }
+
+  public State newState() {
+    return newState(false);
+  }
+
+  public State newState(boolean finalState) {
+    return new State(this, nextId(), finalState);
+  }
+
+  int nextId() {
+    return mNextId++;
+  }
+
+  /**
+   * Get the factory used by the State constructors; for test purposes only
+   */
+  static StateFactory defaultFactory() {
+    return sDefaultFactory;
+  }
+
+  /**
+   * Restart the default factory's ids; for test purposes only
+   */
+  static void resetDefaultFactory() {
+    sDefaultFactory = new StateFactory();
+  }
+
+  private static StateFactory sDefaultFactory = new StateFactory();
+
+  private int mNextId;
+}
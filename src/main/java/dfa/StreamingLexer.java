@@ -0,0 +1,238 @@
+package dfa;
+
+import js.json.JSMap;
+import js.parsing.DFA;
+
+import java.util.Base64;
+
+import static js.base.Tools.*;
+
+/**
+ * Tokenizes input that arrives in fragments (e.g. from a network connection),
+ * without requiring the entire text up front.
+ *
+ * Bytes are supplied via feed(); each token is sent to the listener as soon as
+ * it is unambiguously complete, i.e. once the scan has stopped before the end
+ * of the bytes received so far (a token that reaches the end might be extended
+ * by the next fragment). Call finish() at the end of the input to flush the
+ * remaining tokens.
+ *
+ * Only the bytes of the token being scanned are retained, along with the scan's
+ * DFA state; these can be saved as a small snapshot, and restored to resume
+ * scanning (e.g. in another process).
+ */
+public final class StreamingLexer {
+
+  public interface Listener {
+
+    /**
+     * Called for each token; the token occupies bytes [start, start + length)
+     * of the buffer, which is only valid until the method returns
+     *
+     * @param id     token id, or DfaCursor.ID_UNKNOWN
+     * @param offset offset of the token from the start of the input
+     */
+    void token(int id, long offset, byte[] buffer, int start, int length);
+  }
+
+  /**
+   * Construct a lexer for a DFA, using metadata derived from its graph alone.
+   * The graph doesn't record lexer modes, so a DFA compiled with modes is
+   * silently tokenized using its default mode only, rather than being rejected;
+   * pass the metadata from DfaMetadata.read() to detect this
+   */
+  public StreamingLexer(DFA dfa, Listener listener) {
+    this(dfa, DfaMetadata.analyze(dfa), listener);
+  }
+
+  public StreamingLexer(DFA dfa, DfaMetadata metadata, Listener listener) {
+    checkArgument(!metadata.hasModes(), "lexer modes aren't supported");
+    mGraph = HybridGraph.encode(dfa.graph(), metadata);
+    mDeadEnds = metadata.buildDeadEndFlags(mGraph);
+    mGraphLength = dfa.graph().length;
+    mListener = listener;
+  }
+
+  public StreamingLexer feed(byte[] bytes) {
+    return feed(bytes, 0, bytes.length);
+  }
+
+  public StreamingLexer feed(byte[] bytes, int offset, int length) {
+    checkState(!mFinished, "input has finished");
+    checkArgument(offset >= 0 && length >= 0 && offset + length <= bytes.length, "bad region:", offset, length);
+    append(bytes, offset, length);
+    scan(false);
+    return this;
+  }
+
+  /**
+   * Signal the end of the input, so any remaining tokens are sent to the
+   * listener
+   */
+  public void finish() {
+    checkState(!mFinished, "input has already finished");
+    scan(true);
+    mFinished = true;
+  }
+
+  /**
+   * Get the offset (from the start of the input) of the first byte that
+   * hasn't yet been included in a token
+   */
+  public long offset() {
+    return mOffset;
+  }
+
+  /**
+   * Get the number of bytes retained for the token being scanned
+   */
+  public int pendingLength() {
+    return mEnd - mStart;
+  }
+
+  private void append(byte[] bytes, int offset, int length) {
+    if (mEnd + length > mBuffer.length) {
+      // Discard the bytes of the tokens already sent, and grow the buffer if necessary
+      int pending = mEnd - mStart;
+      var buffer = mBuffer;
+      if (pending + length > buffer.length)
+        buffer = new byte[Math.max(buffer.length * 2, pending + length)];
+      System.arraycopy(mBuffer, mStart, buffer, 0, pending);
+      mBuffer = buffer;
+      mStart = 0;
+      mEnd = pending;
+    }
+    System.arraycopy(bytes, offset, mBuffer, mEnd, length);
+    mEnd += length;
+  }
+
+  /**
+   * Scan as many tokens as possible from the retained bytes
+   */
+  private void scan(boolean endOfInput) {
+    final HybridGraph g = mGraph;
+    final byte[] buffer = mBuffer;
+    while (true) {
+      if (mState < 0) {
+        // Start a new token
+        if (mStart == mEnd)
+          return;
+        mState = 0;
+        mScanLength = 0;
+        mAcceptedId = DfaCursor.ID_UNKNOWN;
+        mAcceptedLength = 1;
+      }
+      int state = mState;
+      int pos = mStart + mScanLength;
+      boolean complete = false;
+      while (true) {
+        int acceptedId = g.acceptedId(state);
+        if (acceptedId >= 0) {
+          mAcceptedId = acceptedId;
+          mAcceptedLength = pos - mStart;
+        }
+        if (mDeadEnds[state]) {
+          complete = true;
+          break;
+        }
+        if (pos == mEnd) {
+          complete = endOfInput;
+          break;
+        }
+        int next = g.next(state, DfaCursor.charCode(buffer[pos]));
+        if (next < 0) {
+          complete = true;
+          break;
+        }
+        state = next;
+        pos++;
+      }
+      if (!complete) {
+        // Wait for more input
+        mState = state;
+        mScanLength = pos - mStart;
+        return;
+      }
+      int length = mAcceptedLength;
+      mListener.token(mAcceptedId, mOffset, buffer, mStart, length);
+      mStart += length;
+      mOffset += length;
+      mState = -1;
+    }
+  }
+
+  private static final String KEY_GRAPH_LENGTH = "graph_length";
+  private static final String KEY_OFFSET = "offset";
+  private static final String KEY_PENDING = "pending";
+  private static final String KEY_STATE = "state";
+  private static final String KEY_SCAN_LENGTH = "scan_length";
+  private static final String KEY_ACCEPTED_ID = "accepted_id";
+  private static final String KEY_ACCEPTED_LENGTH = "accepted_length";
+
+  /**
+   * Construct a snapshot of the scan's progress. The DFA state is stored as
+   * its address within the DFA's graph, so the snapshot can be restored by any
+   * StreamingLexer for the same DFA
+   */
+  public JSMap snapshot() {
+    checkState(!mFinished, "input has finished");
+    var m = map();
+    m.put(KEY_GRAPH_LENGTH, mGraphLength);
+    m.put(KEY_OFFSET, mOffset);
+    var pending = new byte[mEnd - mStart];
+    System.arraycopy(mBuffer, mStart, pending, 0, pending.length);
+    m.put(KEY_PENDING, Base64.getEncoder().encodeToString(pending));
+    if (mState >= 0) {
+      m.put(KEY_STATE, mGraph.addressOf(mState));
+      m.put(KEY_SCAN_LENGTH, mScanLength);
+      m.put(KEY_ACCEPTED_ID, mAcceptedId);
+      m.put(KEY_ACCEPTED_LENGTH, mAcceptedLength);
+    }
+    return m;
+  }
+
+  /**
+   * Restore the scan's progress from a snapshot, replacing any retained bytes
+   */
+  public StreamingLexer restore(JSMap snapshot) {
+    checkArgument(snapshot.opt(KEY_GRAPH_LENGTH, -1) == mGraphLength, "snapshot is for a different DFA");
+    var pending = Base64.getDecoder().decode(snapshot.opt(KEY_PENDING, ""));
+    mBuffer = new byte[Math.max(INITIAL_BUFFER_SIZE, pending.length)];
+    System.arraycopy(pending, 0, mBuffer, 0, pending.length);
+    mStart = 0;
+    mEnd = pending.length;
+    mOffset = snapshot.opt(KEY_OFFSET, 0L);
+    mState = -1;
+    int address = snapshot.opt(KEY_STATE, -1);
+    if (address >= 0) {
+      mState = mGraph.offsetOf(address);
+      mScanLength = snapshot.opt(KEY_SCAN_LENGTH, 0);
+      mAcceptedId = snapshot.opt(KEY_ACCEPTED_ID, DfaCursor.ID_UNKNOWN);
+      mAcceptedLength = snapshot.opt(KEY_ACCEPTED_LENGTH, 1);
+      checkArgument(mState >= 0 && mScanLength <= mEnd && mAcceptedLength <= mScanLength + 1, "bad snapshot");
+    }
+    mFinished = false;
+    return this;
+  }
+
+  private static final int INITIAL_BUFFER_SIZE = 256;
+
+  private final HybridGraph mGraph;
+  private final boolean[] mDeadEnds;
+  private final int mGraphLength;
+  private final Listener mListener;
+
+  // The bytes of the token being scanned occupy [mStart, mEnd) of the buffer
+  private byte[] mBuffer = new byte[INITIAL_BUFFER_SIZE];
+  private int mStart;
+  private int mEnd;
+  private long mOffset;
+  private boolean mFinished;
+
+  // The DFA state of the token being scanned (or -1 if none), the number of bytes consumed to
+  // reach it, and the longest token matched so far
+  private int mState = -1;
+  private int mScanLength;
+  private int mAcceptedId;
+  private int mAcceptedLength;
+}
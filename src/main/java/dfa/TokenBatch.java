@@ -0,0 +1,80 @@
+package dfa;
+
+import static js.base.Tools.*;
+
+/**
+ * A batch of tokens stored as parallel arrays (token ids, start offsets,
+ * lengths and, optionally, line numbers), filled by DfaCursor.nextBatch().
+ *
+ * The arrays can be supplied by the caller, and are reused for each batch, so
+ * tokenizing a buffer performs no allocation per token (or per batch). The
+ * arrays are exposed directly so they can be processed in tight loops; only
+ * the first size() elements of each are valid.
+ */
+public final class TokenBatch {
+
+  public TokenBatch(int capacity) {
+    this(new int[capacity], new int[capacity], new int[capacity]);
+  }
+
+  public TokenBatch(int[] ids, int[] starts, int[] lengths) {
+    checkArgument(ids.length > 0 && starts.length == ids.length && lengths.length == ids.length,
+        "arrays must have the same nonzero length");
+    mIds = ids;
+    mStarts = starts;
+    mLengths = lengths;
+  }
+
+  /**
+   * Also record the (zero-based) line number of each token's first byte
+   */
+  public TokenBatch withLines() {
+    return withLines(new int[capacity()]);
+  }
+
+  public TokenBatch withLines(int[] lines) {
+    checkArgument(lines.length == capacity(), "lines array has wrong length");
+    mLines = lines;
+    return this;
+  }
+
+  public int capacity() {
+    return mIds.length;
+  }
+
+  /**
+   * Get the number of tokens in the batch
+   */
+  public int size() {
+    return mSize;
+  }
+
+  public int[] ids() {
+    return mIds;
+  }
+
+  public int[] starts() {
+    return mStarts;
+  }
+
+  public int[] lengths() {
+    return mLengths;
+  }
+
+  /**
+   * Get the line numbers array, or null if they aren't being recorded
+   */
+  public int[] lines() {
+    return mLines;
+  }
+
+  void setSize(int size) {
+    mSize = size;
+  }
+
+  private final int[] mIds;
+  private final int[] mStarts;
+  private final int[] mLengths;
+  private int[] mLines;
+  private int mSize;
+}
@@ -27,13 +27,23 @@ public final class TokenDefinition {
    * @param scanner     scanner
    * @param tokenDefMap a map of previously parsed regular expressions (mapping names to
    *                    ids) to be consulted when regular expression references are found
+   * @param stateFactory factory for constructing the expression's states
    */
-  public void parse(Lexer scanner, Map<String, TokenDefinition> tokenDefMap) {
-    var p = new TokenDefinitionParser();
+  public void parse(Lexer scanner, Map<String, TokenDefinition> tokenDefMap, StateFactory stateFactory) {
+    var p = new TokenDefinitionParser(stateFactory);
     var states = p.parse(scanner, tokenDefMap);
     checkArgument(states[0] != null && states[1] != null);
     mStartState = states[0];
     mEndState = states[1];
+    mRepeatStateCount = p.repeatStateCount();
+  }
+
+  /**
+   * Get the number of NFA states that were constructed for repetition counts
+   * ({m,n}) within the definition
+   */
+  public int repeatStateCount() {
+    return mRepeatStateCount;
   }
 
   public State startState() {
@@ -48,6 +58,7 @@ public final class TokenDefinition {
 
   private State mStartState;
   private State mEndState;
+  private int mRepeatStateCount;
 
   private final int mId;
   private final String mName;
@@ -5,6 +5,7 @@ import js.parsing.Lexer;
 import js.parsing.Scanner;
 import js.parsing.Token;
 
+import java.util.List;
 import java.util.Map;
 
 import static dfa.Util.*;
@@ -17,11 +18,12 @@ import static js.base.Tools.*;
 //   ALTERNATE -> BINARY '|' ALTERNATE
 //      | BINARY
 //
-//   Binary operations (conjunction, disjunction, difference)
+//   Binary operations (difference, conjunction, disjunction, symmetric difference)
 //   -----------------------------------------------------
 //   BINARY -> CONCAT '--' BINARY
 //          |  CONCAT '&&' BINARY   <--- need to figure out precedence here...
 //          |  CONCAT '||' BINARY
+//          |  CONCAT '^^' BINARY
 //          |  CONCAT
 //
 //   One or more expressions separated only by whitespace:
@@ -29,20 +31,31 @@ import static js.base.Tools.*;
 //   CONCAT -> QUANTIFIED CONCAT
 //      | QUANTIFIED
 //
-//   An expression that has an optional quantifier (*,+,?):
+//   An expression that has an optional quantifier (*,+,?,{m,n}):
 //   ------------------------------------------------------
 //   QUANTIFIED -> PAREN '*'
 //      | PAREN '+'
 //      | PAREN '?'
+//      | PAREN '{' COUNT '}'              exactly m
+//      | PAREN '{' COUNT ',' '}'          at least m
+//      | PAREN '{' COUNT ',' COUNT '}'    between m and n
 //      | PAREN
 //
+//   (a '{' not followed by a digit is a literal; before counts were supported, a
+//   '{' followed by a digit was a literal too, so scripts that mean that must now
+//   write [{] instead, e.g. [{]2)
+//
 //   An expression that is optionally enclosed in parentheses:
 //   ------------------------------------------------------
 //   PAREN -> '(' ALTERNATE ')'
+//      | '~' '(' ALTERNATE ')'       complement (a '~' not followed by '(' is a literal)
 //      | $TOKENNAME
 //      | BRACKETEXPR
 //      | CODE_SET
 //
+//   (before complements were supported, '~(' was a literal '~' followed by a
+//   parenthesized expression; scripts that mean that must now write [~](...) instead)
+//
 //   BRACKETEXPR -> '[' SET_OPTNEG ']'
 //
 //   SET_OPTNEG -> SET+
@@ -67,6 +80,10 @@ import static js.base.Tools.*;
 //
 public class TokenDefinitionParser {
 
+  public TokenDefinitionParser(StateFactory stateFactory) {
+    mStateFactory = stateFactory;
+  }
+
   public State[] parse(Lexer scanner, Map<String, TokenDefinition> tokenDefMap) {
     mTokenDefMap = tokenDefMap;
     mScanner = scanner;
@@ -125,8 +142,8 @@ public class TokenDefinitionParser {
 
     if (readIf(T_ALTERNATE)) {
       NFA e2 = parseALTERNATE();
-      State u = new State();
-      State v = new State();
+      State u = newState();
+      State v = newState();
 
       addEps(u, e1.start);
       addEps(u, e2.start);
@@ -148,13 +165,20 @@ public class TokenDefinitionParser {
     } else if (readIf(T_AND)) {
       var e2 = parseBINARY();
       return BinaryOper.aAndB(e1, e2);
+    } else if (readIf(T_OR)) {
+      var e2 = parseBINARY();
+      return BinaryOper.aOrB(e1, e2);
+    } else if (readIf(T_BREXCEPT)) {
+      read(T_BREXCEPT);
+      var e2 = parseBINARY();
+      return BinaryOper.aXorB(e1, e2);
     }
     return e1;
   }
 
   private NFA parseCONCAT() {
     NFA e1 = parseQUANTIFIED();
-    if (hasNext() && !peekIs(T_TOKENID, T_ALTERNATE, T_PARCL, T_MINUS, T_AND)) {
+    if (hasNext() && !peekIs(T_TOKENID, T_ALTERNATE, T_PARCL, T_MINUS, T_AND, T_OR, T_BREXCEPT)) {
       NFA e2 = parseCONCAT();
       addEps(e1.end, e2.start);
       e1 = nfa(e1.start, e2.end);
@@ -163,7 +187,31 @@ public class TokenDefinitionParser {
   }
 
   private NFA parseQUANTIFIED() {
-    NFA e1 = parsePAREN();
+    return parseQuantifier(parsePAREN());
+  }
+
+  private NFA parseQuantifier(NFA e1) {
+    if (peekIsAscii('{')) {
+      var brace = read(T_ASCII);
+      if (!peekIsDigit()) {
+        // Not a repetition count; treat the '{' as a literal following the expression
+        NFA e2 = parseQuantifier(codeSetNFA(CodeSet.withValue('{')));
+        addEps(e1.end, e2.start);
+        return nfa(e1.start, e2.end);
+      }
+      int min = readCount();
+      int max = min;
+      if (peekIsAscii(',')) {
+        read(T_ASCII);
+        max = peekIsDigit() ? readCount() : REPEAT_UNBOUNDED;
+      }
+      if (!peekIsAscii('}'))
+        throw abortAtToken(peekToken(), "expected '}'");
+      read(T_ASCII);
+      if (max != REPEAT_UNBOUNDED && max < min)
+        throw abortAtToken(brace, "bad repetition count; min:", min, "max:", max);
+      return withEndStateNoOutgoingEdges(repeat(e1, min, max, brace));
+    }
     if (readIf(T_ZERO_OR_MORE)) {
       addEps(e1.start, e1.end);
       addEps(e1.end, e1.start);
@@ -175,6 +223,80 @@ public class TokenDefinitionParser {
     return withEndStateNoOutgoingEdges(e1);
   }
 
+  private boolean peekIsAscii(char c) {
+    var tk = peekToken();
+    return tk != null && tk.id(T_ASCII) && tk.text().charAt(0) == c;
+  }
+
+  private boolean peekIsDigit() {
+    var tk = peekToken();
+    if (tk == null || !tk.id(T_ASCII))
+      return false;
+    char c = tk.text().charAt(0);
+    return c >= '0' && c <= '9';
+  }
+
+  /**
+   * Read a repetition count, which is a sequence of (single digit) ASCII tokens
+   */
+  private int readCount() {
+    var first = peekToken();
+    int value = 0;
+    while (peekIsDigit()) {
+      value = value * 10 + (read(T_ASCII).text().charAt(0) - '0');
+      if (value > MAX_REPEAT_COUNT)
+        throw abortAtToken(first, "repetition count exceeds", MAX_REPEAT_COUNT);
+    }
+    return value;
+  }
+
+  /**
+   * Construct an NFA that matches between min and max (or REPEAT_UNBOUNDED)
+   * occurrences of another.
+   *
+   * The copies are chained by single epsilon edges; an optional copy has one
+   * additional epsilon edge (skipping it, and any that follow), and an
+   * unbounded repetition loops on its last copy
+   */
+  private NFA repeat(NFA e, int min, int max, Lexeme location) {
+    int copyCount = (max == REPEAT_UNBOUNDED) ? Math.max(min, 1) : max;
+
+    int statesPerCopy = reachableStates(e.start).size();
+    long totalStates = (long) statesPerCopy * copyCount;
+    if (totalStates > MAX_REPEAT_STATES)
+      throw abortAtToken(location, "repetition would produce", totalStates, "states; the limit is",
+          MAX_REPEAT_STATES);
+
+    // Make all the copies before linking any of them, since linking modifies the end states
+    List<NFA> copies = arrayList();
+    for (int i = 0; i < copyCount; i++)
+      copies.add(i == 0 ? e : duplicateNFA(e.start, e.end));
+    mRepeatStateCount += (int) totalStates;
+
+    State start = newState();
+    State end = newState();
+    State prev = start;
+    for (int i = 0; i < copyCount; i++) {
+      var c = copies.get(i);
+      if (i >= min)
+        addEps(prev, end);
+      addEps(prev, c.start);
+      prev = c.end;
+    }
+    if (max == REPEAT_UNBOUNDED)
+      addEps(prev, copies.get(copyCount - 1).start);
+    addEps(prev, end);
+    return nfa(start, end);
+  }
+
+  /**
+   * Get the number of NFA states that were constructed by duplicating
+   * expressions for repetition counts
+   */
+  public int repeatStateCount() {
+    return mRepeatStateCount;
+  }
+
   private NFA parsePAREN() {
     NFA e1;
     var t = peekToken();
@@ -186,18 +308,33 @@ public class TokenDefinitionParser {
       e1 = parseRegExpReference();
     } else if (t.id(T_BROP)) {
       e1 = parseBracketExpr();
+    } else if (t.id(T_ASCII) && t.text().equals("~")) {
+      read(T_ASCII);
+      if (peekIs(T_PAROP))
+        e1 = BinaryOper.complement(parsePAREN());
+      else
+        e1 = codeSetNFA(CodeSet.withValue('~'));
     } else {
-      CodeSet code_set = parseCodeSet();
-      // Construct a pair of states with an edge between them
-      // labelled with this code set
-      State sA = new State();
-      State sB = new State();
-      addEdge(sA, code_set, sB);
-      e1 = nfa(sA, sB);
+      e1 = codeSetNFA(parseCodeSet());
     }
     return e1;
   }
 
+  /**
+   * Construct a pair of states with an edge between them labelled with a code
+   * set
+   */
+  private NFA codeSetNFA(CodeSet codeSet) {
+    State sA = newState();
+    State sB = newState();
+    addEdge(sA, codeSet, sB);
+    return nfa(sA, sB);
+  }
+
+  private State newState() {
+    return mStateFactory.newState();
+  }
+
   private NFA parseRegExpReference() {
     var t = read(T_RXREF);
     var s = t.text();
@@ -205,7 +342,8 @@ public class TokenDefinitionParser {
     TokenDefinition regExp = mTokenDefMap.get(nameStr);
     if (regExp == null)
       throw abortAtToken(t, "undefined token");
-    return duplicateNFA(regExp.startState(), regExp.endState());
+    // The definition may be a shared predefined one, constructed by a different factory
+    return duplicateNFA(regExp.startState(), regExp.endState(), mStateFactory);
   }
 
   /**
@@ -346,10 +484,7 @@ public class TokenDefinitionParser {
     if (result.isEmpty())
       throw abortAtToken(start, "Empty character range");
 
-    State sA = new State();
-    State sB = new State();
-    addEdge(sA, result, sB);
-    return nfa(sA, sB);
+    return codeSetNFA(result);
   }
 
   /**
@@ -359,26 +494,31 @@ public class TokenDefinitionParser {
   private NFA withEndStateNoOutgoingEdges(NFA nfa) {
     State end_state = nfa.end;
     if (!end_state.edges().isEmpty()) {
-      State new_final_state = new State();
+      State new_final_state = newState();
       addEps(end_state, new_final_state);
       return nfa(nfa.start, new_final_state);
     }
     return nfa;
   }
 
-  private static NFA setMinus(NFA a, NFA b) {
-    throw notSupported("setMinus");
-  }
 
+  private static final int REPEAT_UNBOUNDED = -1;
+
+  // Limits on repetition counts, to prevent a small expression from silently
+  // producing an enormous NFA (and DFA)
+  private static final int MAX_REPEAT_COUNT = 1000;
+  private static final int MAX_REPEAT_STATES = 50_000;
 
   private static CodeSet sDigitCodeSet;
   private static CodeSet sWordCharCodeSet;
 
+  private final StateFactory mStateFactory;
   private State mStartState;
   private State mEndState;
   private Map<String, TokenDefinition> mTokenDefMap;
   private Lexer mScanner;
   private Lexeme mReadToken;
+  private int mRepeatStateCount;
 
   // Token Ids generated by 'dev dfa' tool (DO NOT EDIT BELOW)
   public static final int T_WHITESPACE = 0;
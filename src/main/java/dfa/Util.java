@@ -50,12 +50,123 @@ public final class Util {
     return output;
   }
 
+  /**
+   * Remove edges to states from which no final state can be reached, thereby
+   * deleting such states (other than the start state) from the state machine.
+   *
+   * Returns the number of states removed
+   */
+  public static int pruneNonProductiveStates(State startState) {
+    List<State> reachable = reachableStates(startState);
+
+    // Map of state => states with edges to it
+    Map<State, List<State>> predecessors = hashMap();
+    List<State> stack = arrayList();
+    Set<State> productive = hashSet();
+    for (State s : reachable) {
+      if (s.finalState() && productive.add(s))
+        push(stack, s);
+      for (Edge edge : s.edges())
+        predecessors.computeIfAbsent(edge.destinationState(), k -> arrayList()).add(s);
+    }
+
+    while (nonEmpty(stack)) {
+      State s = pop(stack);
+      for (State p : predecessors.getOrDefault(s, Collections.emptyList())) {
+        if (productive.add(p))
+          push(stack, p);
+      }
+    }
+
+    if (productive.size() == reachable.size())
+      return 0;
+
+    for (State s : reachable) {
+      if (!productive.contains(s))
+        continue;
+      List<Edge> filtered = arrayList();
+      for (Edge edge : s.edges())
+        if (productive.contains(edge.destinationState()))
+          filtered.add(edge);
+      if (filtered.size() != s.edges().size())
+        s.setEdges(filtered);
+    }
+    if (!productive.contains(startState))
+      startState.setEdges(arrayList());
+    return reachable.size() - productive.size();
+  }
+
+  /**
+   * Remove the epsilon edges from an NFA, in place.
+   *
+   * Each state is given the (non-epsilon) edges of every state in its epsilon
+   * closure, and becomes final if any of them is final. States that were only
+   * reachable via epsilon edges become unreachable, so the subset construction
+   * has fewer states to work with, and no closures to compute.
+   *
+   * Returns the number of states removed
+   */
+  public static int removeEpsilonEdges(State startState) {
+    List<State> reachable = reachableStates(startState);
+
+    // Calculate the new edges before modifying any states, since the closures
+    // depend upon the original edges
+    Map<State, List<Edge>> newEdgesMap = hashMap();
+    Set<State> newFinalStates = hashSet();
+    for (State s : reachable) {
+      // Map of destination state => union of labels leading to it, sorted for deterministic results
+      Map<State, CodeSet> destLabels = treeMap();
+      for (State t : epsClosure(s)) {
+        if (t.finalState())
+          newFinalStates.add(s);
+        for (Edge edge : t.edges()) {
+          if (edge.contains(EPSILON))
+            continue;
+          var labels = destLabels.get(edge.destinationState());
+          if (labels == null)
+            destLabels.put(edge.destinationState(), edge.codeSet().dup());
+          else
+            labels.addSet(edge.codeSet());
+        }
+      }
+      List<Edge> newEdges = arrayList();
+      for (var ent : destLabels.entrySet())
+        newEdges.add(new Edge(ent.getValue(), ent.getKey()));
+      newEdgesMap.put(s, newEdges);
+    }
+
+    for (State s : reachable) {
+      s.setEdges(newEdgesMap.get(s));
+      if (newFinalStates.contains(s))
+        s.setFinal(true);
+    }
+    return reachable.size() - reachableStates(startState).size();
+  }
+
+  /**
+   * Calculate the epsilon closure of a single state
+   */
+  private static Set<State> epsClosure(State state) {
+    Set<State> closure = treeSet();
+    List<State> stack = arrayList();
+    closure.add(state);
+    push(stack, state);
+    while (nonEmpty(stack)) {
+      State s = pop(stack);
+      for (Edge edge : s.edges()) {
+        if (edge.contains(EPSILON) && closure.add(edge.destinationState()))
+          push(stack, edge.destinationState());
+      }
+    }
+    return closure;
+  }
+
   /**
    * Construct the reverse of an NFA
    */
   public static State reverseNFA(State startState) {
     // Create new start state first, so it has the lowest id
-    State newStartState = new State();
+    State newStartState = startState.factory().newState();
 
     List<State> newStartStateList = arrayList();
     List<State> newFinalStateList = arrayList();
@@ -94,7 +205,15 @@ public final class Util {
    * Duplicate the NFA reachable from a state
    */
   public static NFA duplicateNFA(State startState, State endState) {
-    var renamer = new StateRenamer();
+    return duplicateNFA(startState, endState, startState.factory());
+  }
+
+  /**
+   * Duplicate the NFA reachable from a state, constructing the new states with
+   * a particular factory
+   */
+  public static NFA duplicateNFA(State startState, State endState, StateFactory factory) {
+    var renamer = new StateRenamer(factory);
     renamer.createRenamedVersions(startState, true);
     var newEndState = renamer.newStateForOld(endState);
     if (newEndState == null)
@@ -303,6 +422,7 @@ public final class Util {
 
   public static final String EXT_RXP = "rxp" //
       , EXT_DFA = "dfa" //
+      , EXT_DFA_BINARY = "dfab" //
       ;
 
   public static final int FTYPE_JAVA = 0 //
@@ -446,29 +566,29 @@ public final class Util {
 
   private static class StateRenamer {
 
-    public int getNewId(int oldId) {
-      return mOldToNewIdsMap.get(oldId);
+    public StateRenamer() {
+      this(null);
     }
 
-    public State stateWithId(int id) {
-      return mIdToStateMap.get(id);
-    }
-
-    public State newStateForOldId(int oldId) {
-      return stateWithId(getNewId(oldId));
+    /**
+     * Construct a renamer whose new states are constructed by a particular
+     * factory; if null, by the factory of the old state being renamed
+     */
+    public StateRenamer(StateFactory factory) {
+      mFactory = factory;
     }
 
     public State newStateForOld(State oldState) {
-      return newStateForOldId(oldState.id());
+      return mOldToNewMap.get(oldState);
     }
 
     public State addOldToNew(State oldState, State newStateOrNull) {
       var newState = newStateOrNull;
-      if (newState == null)
-        newState = new State(oldState.finalState());
-      mOldToNewIdsMap.put(oldState.id(), newState.id());
-      mIdToStateMap.put(oldState.id(), oldState);
-      mIdToStateMap.put(newState.id(), newState);
+      if (newState == null) {
+        var factory = mFactory != null ? mFactory : oldState.factory();
+        newState = factory.newState(oldState.finalState());
+      }
+      mOldToNewMap.put(oldState, newState);
       return newState;
     }
 
@@ -497,13 +617,16 @@ public final class Util {
       return oldStates;
     }
 
-    Map<Integer, Integer> mOldToNewIdsMap = hashMap();
-    Map<Integer, State> mIdToStateMap = hashMap();
+    // Keyed by state rather than id, as the old and new states may come from
+    // different factories
+    private final Map<State, State> mOldToNewMap = hashMap();
+    private final StateFactory mFactory;
 
   }
 
-  private static State auxNewState(int offset, List<State> stateList, Map<Integer, Integer> offsetToIndexMap) {
-    var state = new State();
+  private static State auxNewState(StateFactory factory, int offset, List<State> stateList,
+      Map<Integer, Integer> offsetToIndexMap) {
+    var state = factory.newState();
     offsetToIndexMap.put(offset, stateList.size());
     stateList.add(state);
     return state;
@@ -521,6 +644,7 @@ public final class Util {
     //
     var g = dfa.graph();
 
+    var factory = new StateFactory();
     List<State> stateList = arrayList();
     Map<Integer, Integer> offsetToStateMap = hashMap();
 
@@ -530,7 +654,7 @@ public final class Util {
     {
       int offset = 0;
       while (offset < g.length) {
-        auxNewState(offset, stateList, offsetToStateMap);
+        auxNewState(factory, offset, stateList, offsetToStateMap);
         var edgeCount = g[offset + 1];
         offset += 2;
         for (int j = 0; j < edgeCount; j++) {
@@ -539,7 +663,7 @@ public final class Util {
         }
       }
       // Construct a single final state; it doesn't actually appear in the compiled DFA though
-      finalState = auxNewState(offset, stateList, offsetToStateMap);
+      finalState = auxNewState(factory, offset, stateList, offsetToStateMap);
       finalState.setFinal(true);
     }
 
@@ -43,6 +43,26 @@ public class DfaConfig implements AbstractData {
     return mDescribe;
   }
 
+  public boolean server() {
+    return mServer;
+  }
+
+  public boolean binary() {
+    return mBinary;
+  }
+
+  public File javaClass() {
+    return mJavaClass;
+  }
+
+  public boolean layout() {
+    return mLayout;
+  }
+
+  public File profile() {
+    return mProfile;
+  }
+
   @Override
   public Builder toBuilder() {
     return new Builder(this);
@@ -57,6 +77,11 @@ public class DfaConfig implements AbstractData {
   protected static final String _6 = "version";
   protected static final String _7 = "ascii";
   protected static final String _8 = "describe";
+  protected static final String _9 = "server";
+  protected static final String _10 = "binary";
+  protected static final String _11 = "java_class";
+  protected static final String _12 = "layout";
+  protected static final String _13 = "profile";
 
   @Override
   public String toString() {
@@ -75,6 +100,11 @@ public class DfaConfig implements AbstractData {
     m.putUnsafe(_6, mVersion);
     m.putUnsafe(_7, mAscii);
     m.putUnsafe(_8, mDescribe);
+    m.putUnsafe(_9, mServer);
+    m.putUnsafe(_10, mBinary);
+    m.putUnsafe(_11, mJavaClass.toString());
+    m.putUnsafe(_12, mLayout);
+    m.putUnsafe(_13, mProfile.toString());
     return m;
   }
 
@@ -122,6 +152,23 @@ public class DfaConfig implements AbstractData {
     mVersion = m.opt(_6, 5.1f);
     mAscii = m.opt(_7, false);
     mDescribe = m.opt(_8, false);
+    mServer = m.opt(_9, false);
+    mBinary = m.opt(_10, false);
+    {
+      mJavaClass = Files.DEFAULT;
+      String x = m.opt(_11, (String) null);
+      if (x != null) {
+        mJavaClass = new File(x);
+      }
+    }
+    mLayout = m.opt(_12, false);
+    {
+      mProfile = Files.DEFAULT;
+      String x = m.opt(_13, (String) null);
+      if (x != null) {
+        mProfile = new File(x);
+      }
+    }
   }
 
   public static Builder newBuilder() {
@@ -155,6 +202,16 @@ public class DfaConfig implements AbstractData {
       return false;
     if (!(mDescribe == other.mDescribe))
       return false;
+    if (!(mServer == other.mServer))
+      return false;
+    if (!(mBinary == other.mBinary))
+      return false;
+    if (!(mJavaClass.equals(other.mJavaClass)))
+      return false;
+    if (!(mLayout == other.mLayout))
+      return false;
+    if (!(mProfile.equals(other.mProfile)))
+      return false;
     return true;
   }
 
@@ -172,6 +229,11 @@ public class DfaConfig implements AbstractData {
       r = r * 37 + (int)mVersion;
       r = r * 37 + (mAscii ? 1 : 0);
       r = r * 37 + (mDescribe ? 1 : 0);
+      r = r * 37 + (mServer ? 1 : 0);
+      r = r * 37 + (mBinary ? 1 : 0);
+      r = r * 37 + mJavaClass.hashCode();
+      r = r * 37 + (mLayout ? 1 : 0);
+      r = r * 37 + mProfile.hashCode();
       m__hashcode = r;
     }
     return r;
@@ -186,6 +248,11 @@ public class DfaConfig implements AbstractData {
   protected float mVersion;
   protected boolean mAscii;
   protected boolean mDescribe;
+  protected boolean mServer;
+  protected boolean mBinary;
+  protected File mJavaClass;
+  protected boolean mLayout;
+  protected File mProfile;
   protected int m__hashcode;
 
   public static final class Builder extends DfaConfig {
@@ -200,6 +267,11 @@ public class DfaConfig implements AbstractData {
       mVersion = m.mVersion;
       mAscii = m.mAscii;
       mDescribe = m.mDescribe;
+      mServer = m.mServer;
+      mBinary = m.mBinary;
+      mJavaClass = m.mJavaClass;
+      mLayout = m.mLayout;
+      mProfile = m.mProfile;
     }
 
     @Override
@@ -225,6 +297,11 @@ public class DfaConfig implements AbstractData {
       r.mVersion = mVersion;
       r.mAscii = mAscii;
       r.mDescribe = mDescribe;
+      r.mServer = mServer;
+      r.mBinary = mBinary;
+      r.mJavaClass = mJavaClass;
+      r.mLayout = mLayout;
+      r.mProfile = mProfile;
       return r;
     }
 
@@ -273,6 +350,31 @@ public class DfaConfig implements AbstractData {
       return this;
     }
 
+    public Builder server(boolean x) {
+      mServer = x;
+      return this;
+    }
+
+    public Builder binary(boolean x) {
+      mBinary = x;
+      return this;
+    }
+
+    public Builder javaClass(File x) {
+      mJavaClass = (x == null) ? Files.DEFAULT : x;
+      return this;
+    }
+
+    public Builder layout(boolean x) {
+      mLayout = x;
+      return this;
+    }
+
+    public Builder profile(File x) {
+      mProfile = (x == null) ? Files.DEFAULT : x;
+      return this;
+    }
+
   }
 
   public static final DfaConfig DEFAULT_INSTANCE = new DfaConfig();
@@ -283,6 +385,8 @@ public class DfaConfig implements AbstractData {
     mIds = Files.DEFAULT;
     mExampleText = Files.DEFAULT;
     mVersion = 5.1f;
+    mProfile = Files.DEFAULT;
+    mJavaClass = Files.DEFAULT;
   }
 
 }
@@ -27,11 +27,19 @@ import static js.base.Tools.*;
 import static org.junit.Assert.*;
 
 import js.parsing.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Test;
 
 import js.base.BasePrinter;
 import js.file.FileException;
 import js.file.Files;
+import js.json.JSMap;
 import js.testutil.MyTestCase;
 
 import static dfa.Util.*;
@@ -118,6 +126,433 @@ public class CompileTest extends MyTestCase {
     proc();
   }
 
+  @Test
+  public void bool1() {
+    disallowUnknown();
+    skipWS();
+    proc();
+  }
+
+  @Test
+  public void repeat1() {
+    disallowUnknown();
+    skipWS();
+    proc();
+  }
+
+  @Test(expected = LexerException.class)
+  public void repetitionLimit() {
+    new DFACompiler().parse("A: a{5000}\n");
+  }
+
+  @Test
+  public void removeEpsilons() {
+    // (a | b*) c, built with epsilon edges
+    State start = new State();
+    State s1 = new State();
+    State s2 = new State();
+    State s3 = new State();
+    State s4 = new State();
+    State end = new State(true);
+    addEps(start, s1);
+    addEps(start, s2);
+    addEdge(s1, CodeSet.withValue('a'), s3);
+    addEdge(s2, CodeSet.withValue('b'), s2);
+    addEps(s2, s3);
+    addEdge(s3, CodeSet.withValue('c'), s4);
+    addEps(s4, end);
+
+    assertEquals(2, removeEpsilonEdges(start));
+    for (var s : reachableStates(start))
+      for (var edge : s.edges())
+        assertFalse(edge.contains(EPSILON));
+    assertTrue(s4.finalState());
+    assertEquals(3, start.edges().size());
+  }
+
+  @Test
+  public void epsilonCycleClosures() {
+    // Two epsilon cycles, {s1,s2} and {s3,s4}, each forming a single component
+    State s0 = new State();
+    State s1 = new State();
+    State s2 = new State();
+    State s3 = new State();
+    State s4 = new State(true);
+    addEps(s0, s1);
+    addEps(s1, s2);
+    addEps(s2, s1);
+    addEdge(s2, cs('a'), s3);
+    addEps(s3, s4);
+    addEps(s4, s3);
+    addEdge(s0, cs('b'), s4);
+
+    var converter = new NFAToDFA();
+    converter.prepareClosures(s0);
+    assertEquals(List.of(s0, s1, s2), converter.closure(s0));
+    assertEquals(List.of(s1, s2), converter.closure(s1));
+    assertEquals(List.of(s1, s2), converter.closure(s2));
+    assertEquals(List.of(s3, s4), converter.closure(s3));
+    assertEquals(List.of(s3, s4), converter.closure(s4));
+    // One closure per component, calculated on first use
+    assertEquals(3, converter.closureMisses());
+    assertEquals(3, converter.closureHits());
+
+    // The counters start over with each conversion
+    converter = new NFAToDFA();
+    converter.convertNFAToDFA(s0);
+    int hits = converter.closureHits();
+    int misses = converter.closureMisses();
+    assertTrue(misses > 0);
+    converter.convertNFAToDFA(s0);
+    assertEquals(hits, converter.closureHits());
+    assertEquals(misses, converter.closureMisses());
+  }
+
+  @Test
+  public void pruneMinusProduct() {
+    // [ab]+ -- (bb [ab]*): once "bb" has been read, no product state can reach a final state
+    State a0 = new State();
+    State a1 = new State();
+    State aEnd = new State(true);
+    addEdge(a0, cs("ab"), a1);
+    addEps(a1, a0);
+    addEps(a1, aEnd);
+
+    State b0 = new State();
+    State b1 = new State();
+    State b2 = new State();
+    State bEnd = new State(true);
+    addEdge(b0, cs('b'), b1);
+    addEdge(b1, cs('b'), b2);
+    addEdge(b2, cs("ab"), b2);
+    addEps(b2, bEnd);
+
+    var oper = new BinaryOper(nfa(a0, aEnd), nfa(b0, bEnd), BinaryOper.OperationCode.MINUS);
+    var product = oper.result();
+    // The sink reached by "bb" is gone; the start, "b", "a..." and end states remain
+    assertEquals(1, oper.prunedStateCount());
+    assertEquals(4, reachableStates(product.start).size());
+
+    // The pruned product tokenizes exactly like an equivalent expression without MINUS
+    var text = new StringBuilder();
+    for (int len = 1; len <= 4; len++)
+      for (int bits = 0; bits < (1 << len); bits++) {
+        for (int i = 0; i < len; i++)
+          text.append((bits & (1 << i)) != 0 ? 'b' : 'a');
+        text.append(' ');
+      }
+    assertEquals(tokenEnds("WS: \\s+\nX: a [ab]* | b (a [ab]*)?\n", text.toString()),
+        tokenEnds("WS: \\s+\nX: [ab]+ -- (bb [ab]*)\n", text.toString()));
+  }
+
+  private static String tokenEnds(String script, String text) {
+    var c = new DfaCursor(new DFACompiler().parse(script)).withText(text);
+    var sb = new StringBuilder();
+    while (c.nextToken() != DfaCursor.ID_END_OF_INPUT)
+      sb.append(c.tokenId()).append('@').append(c.tokenEnd()).append(' ');
+    return sb.toString();
+  }
+
+  @Test
+  public void concurrentCompilation() throws Exception {
+    var script = "WS: \\s+\n" +
+        "NUM: \\d+\n" +
+        "ID: [a-z]+ -- (if | else)\n";
+    var expected = new DFACompiler().parse(script).toString();
+    var pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<String>> results = arrayList();
+      for (int i = 0; i < 8; i++)
+        results.add(pool.submit(() -> new DFACompiler().parse(script).toString()));
+      for (var r : results)
+        assertEquals(expected, r.get());
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void server() {
+    var request = map().put("id", "a").put("script", "WS: \\s+\nNUM: \\d+\n");
+    var text = request + "\n" + request.put("id", "b") + "\n" +
+        map().put("id", "c").put("script", "X: (\n") + "\n" +
+        map().put("cmd", "shutdown") + "\n";
+    var out = new ByteArrayOutputStream();
+    new DfaServer(files()).run(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), out);
+
+    var lines = split(out.toString(StandardCharsets.UTF_8).trim(), '\n');
+    assertEquals(4, lines.size());
+    var r0 = new JSMap(lines.get(0));
+    var r1 = new JSMap(lines.get(1));
+    var r2 = new JSMap(lines.get(2));
+    assertTrue(r0.opt("ok", false));
+    assertFalse(r0.opt("cached", true));
+    assertTrue(r1.opt("cached", false));
+    assertEquals(r0.optJSMap("dfa").toString(), r1.optJSMap("dfa").toString());
+    assertFalse(r2.opt("ok", true));
+  }
+
+  @Test
+  public void serverParsesPredefsOnce() {
+    var text = map().put("id", "a").put("script", "WS: $_WHITESPACE\nNUM: \\d+\n") + "\n" +
+        map().put("id", "b").put("script", "WS: $_WHITESPACE\nID: [a-z]+\n") + "\n";
+    var out = new ByteArrayOutputStream();
+    new DfaServer(files()).run(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), out);
+
+    var lines = split(out.toString(StandardCharsets.UTF_8).trim(), '\n');
+    assertEquals(2, lines.size());
+    for (var line : lines) {
+      var r = new JSMap(line);
+      assertTrue(r.opt("ok", false));
+      assertFalse(r.opt("cached", true));
+    }
+    assertEquals(1, DFACompiler.predefParseCount());
+  }
+
+  @Test
+  public void binaryRoundTrip() {
+    var compiler = new DFACompiler();
+    var dfa = compiler.parse("WS: \\s+\nNUM: \\d+\nSTR: \" [^\"]* \"\nID: [a-z]+\n");
+    var bytes = DfaBinary.encode(dfa, compiler.metadata());
+
+    var decoded = DfaBinary.decode(bytes);
+    assertEquals(dfa.toString(), decoded.dfa().toString());
+    assertEquals(describe(dfa).toString(), describe(decoded.dfa()).toString());
+    assertEquals(compiler.metadata().toJson().toString(), decoded.metadata().toJson().toString());
+
+    var file = generatedFile("tokens.dfab");
+    files().write(bytes, file);
+    assertEquals(describe(dfa).toString(), describe(DfaBinary.read(file).dfa()).toString());
+  }
+
+  @Test
+  public void javaClassLiterals() {
+    var graph = new byte[40_000];
+    for (int i = 0; i < graph.length; i++)
+      graph[i] = (byte) (i * 7);
+    var literals = JavaClassWriter.graphLiterals(graph);
+    assertEquals(3, literals.size());
+
+    // Decode the literals as the Java compiler would
+    var decoded = new ByteArrayOutputStream();
+    for (var lit : literals) {
+      for (int i = 1; i < lit.length() - 1; i++) {
+        char c = lit.charAt(i);
+        if (c == '\\') {
+          decoded.write(Integer.parseInt(lit.substring(i + 1, i + 4), 8));
+          i += 3;
+        } else
+          decoded.write(c);
+      }
+    }
+    assertArrayEquals(graph, decoded.toByteArray());
+  }
+
+  @Test
+  public void layout() {
+    var script = "WS: \\s+\n" +
+        "NUM: \\d+ (\\. \\d+)?\n" +
+        "STR: \" [^\"]* \"\n" +
+        "ID: [a-zA-Z_] \\w*\n" +
+        "KEYWORD: if | else | while\n" +
+        "OP: [\\+\\-\\*/=<>]\n";
+    var text = "while x1 < 42.5 if y = \"hello\" else zz * 7";
+    var expected = describeTokens(new DFACompiler(), script, text);
+    assertEquals(expected, describeTokens(new DFACompiler().withLayout(true), script, text));
+
+    // Tune the DFA to some sample text
+    var sample = "x = y + 1\nwhile x < 10 x = x * 2\n".getBytes(StandardCharsets.UTF_8);
+    var compiler = new DFACompiler().withProfileCorpora(List.of(sample));
+    assertEquals(expected, describeTokens(compiler, script, text));
+    var report = compiler.profile().heatReport();
+    assertTrue(report.opt("tokens", 0L) > 0);
+    // The start state is visited once per token
+    assertEquals(compiler.profile().stateHits(0), report.opt("tokens", 0L));
+  }
+
+  @Test
+  public void profiledDenseStates() {
+    var script = "WS: \\s+\nID: [a-zA-Z_] \\w*\nOP: [\\+\\-\\*/=<>]\nNUM: \\d+\n";
+    var sample = "x = y + 1\nwhile x < 10 x = x * 2\n".getBytes(StandardCharsets.UTF_8);
+    var compiler = new DFACompiler().withProfileCorpora(List.of(sample));
+    var dfa = compiler.parse(script);
+    var metadata = compiler.metadata();
+    var hybrid = HybridGraph.encode(dfa.graph(), metadata);
+
+    // The final state (whose address is that of another state, or the graph's length) is never chosen
+    assertFalse(metadata.isDense(dfa.graph().length));
+    int dense = 0;
+    for (int addr : hybrid.stateAddresses()) {
+      if (!metadata.isDense(addr))
+        continue;
+      dense++;
+      assertEquals(HybridGraph.KIND_DENSE, hybrid.kind(hybrid.offsetOf(addr)));
+    }
+    // The start state is visited for every token, and has a range for each token's first codes
+    assertTrue(metadata.isDense(0));
+    assertTrue(dense > 0);
+  }
+
+  @Test
+  public void keywordRuns() {
+    var script = "WS: \\s+\nKW: return|whilst\nNUM: \\d+\n";
+    var compiler = new DFACompiler();
+    var dfa = compiler.parse(script);
+    var hybrid = HybridGraph.encode(dfa.graph(), compiler.metadata());
+    int runs = 0;
+    for (int addr : hybrid.stateAddresses())
+      if (hybrid.kind(hybrid.offsetOf(addr)) == HybridGraph.KIND_RUN)
+        runs++;
+    assertEquals(2, runs);
+
+    // The runs must have the same transitions as the encoding without them
+    var plain = HybridGraph.encode(dfa.graph(), compiler.metadata(), false);
+    for (int addr : plain.stateAddresses()) {
+      int state = hybrid.offsetOf(addr);
+      int plainState = plain.offsetOf(addr);
+      assertEquals(plain.acceptedId(plainState), hybrid.acceptedId(state));
+      for (int c = 0; c < MAX_CHAR_CODE; c++)
+        assertEquals(targetAddress(plain, plain.next(plainState, c)), targetAddress(hybrid, hybrid.next(state, c)));
+      if (hybrid.kind(state) != HybridGraph.KIND_RUN)
+        continue;
+
+      // Follow the chain one code at a time in the plain encoding
+      var codes = new byte[hybrid.runLength(state)];
+      int s = plainState;
+      for (int i = 0; i < codes.length; i++) {
+        int c = 0;
+        while (plain.next(s, c) < 0)
+          c++;
+        codes[i] = (byte) c;
+        s = plain.next(s, c);
+      }
+      assertEquals(codes.length, hybrid.matchRun(state, codes, 0, codes.length));
+      assertEquals(plain.addressOf(s), hybrid.addressOf(hybrid.runTarget(state)));
+    }
+  }
+
+  private static int targetAddress(HybridGraph graph, int state) {
+    return state < 0 ? -1 : graph.addressOf(state);
+  }
+
+  @Test
+  public void skipSet() {
+    var script = "WS: [\\s\\n]+\nCOMMENT: \\# [^\\n]*\nID: [a-z]+\n_SKIP: $WS | $COMMENT\n";
+    var compiler = new DFACompiler();
+    var dfa = compiler.parse(script);
+    var metadata = DfaMetadata.fromJson(compiler.metadata().toJson(), dfa.graph());
+    assertTrue(metadata.isSkipped(0));
+    assertTrue(metadata.isSkipped(1));
+    assertFalse(metadata.isSkipped(2));
+
+    var c = new DfaCursor(dfa, metadata).withSkipping(true).withText("abc # comment\n  de # more ");
+    var sb = new StringBuilder();
+    while (c.nextToken() != DfaCursor.ID_END_OF_INPUT)
+      sb.append(c.tokenName()).append(':').append(c.tokenText()).append(' ');
+    assertEquals("ID:abc ID:de ", sb.toString());
+  }
+
+  @Test(expected = LexerException.class)
+  public void skipNameReserved() {
+    // _SKIP can't be used as the name of an anonymous expression
+    new DFACompiler().parse("_SKIP: [ \\t]+\nWS: $_SKIP\n");
+  }
+
+  @Test(expected = LexerException.class)
+  public void modeNameReserved() {
+    // Names starting with _MODE_ can't be used for anonymous expressions
+    new DFACompiler().parse("_MODE_DIGITS: \\d+\nNUM: $_MODE_DIGITS\n");
+  }
+
+  @Test(expected = LexerException.class)
+  public void switchNameReserved() {
+    new DFACompiler().parse("_SWITCH_DEFAULT: [ \\t]+\nWS: $_SWITCH_DEFAULT\n");
+  }
+
+  @Test
+  public void lexerModes() {
+    var script = "WS: \\s+\n" +
+        "ID: [a-z]+\n" +
+        "QUOTE: \"\n" +
+        "TEXT: [^\"]+\n" +
+        "END_QUOTE: \"\n" +
+        "_MODE_STRING: $TEXT | $END_QUOTE\n" +
+        "_SWITCH_STRING: $QUOTE\n" +
+        "_SWITCH_DEFAULT: $END_QUOTE\n";
+    assertEquals("ID:abc QUOTE:\" TEXT:hello world END_QUOTE:\" ID:de QUOTE:\" END_QUOTE:\" ",
+        describeTokens(script, "abc \"hello world\" de \"\""));
+
+    var compiler = new DFACompiler();
+    var dfa = compiler.parse(script);
+    var metadata = DfaMetadata.fromJson(compiler.metadata().toJson(), dfa.graph());
+    assertEquals(List.of("DEFAULT", "STRING"), metadata.modeNames());
+    assertEquals(0, metadata.modeStart(0));
+    var c = new DfaCursor(dfa, metadata).withText("ab cd\"").setMode("STRING");
+    assertEquals("TEXT", dfa.tokenName(c.nextToken()));
+    assertEquals("END_QUOTE", dfa.tokenName(c.nextToken()));
+    assertEquals("DEFAULT", c.modeName());
+  }
+
+  @Test
+  public void mergeModes() {
+    // Modes A and B both recognize NUM and RBR
+    var script = "WS: \\s+\n" +
+        "NUM: \\d+\n" +
+        "ID: [a-z]+\n" +
+        "OP: [\\+\\-]\n" +
+        "LBR: \\[\n" +
+        "LPAR: \\(\n" +
+        "RBR: \\]\n" +
+        "_MODE_A: $NUM | $ID | $RBR\n" +
+        "_MODE_B: $NUM | $OP | $RBR\n" +
+        "_SWITCH_A: $LBR\n" +
+        "_SWITCH_B: $LPAR\n" +
+        "_SWITCH_DEFAULT: $RBR\n";
+    var compiler = new DFACompiler();
+    var dfa = compiler.parse(script);
+    assertTrue(compiler.mergedStateCount() > 0);
+    assertTrue(compiler.mergedStateCount() < compiler.unmergedStateCount());
+
+    // Each mode still recognizes its own tokens
+    var c = new DfaCursor(dfa, compiler.metadata()).withText("[12ab](3-4]");
+    var sb = new StringBuilder();
+    while (c.nextToken() != DfaCursor.ID_END_OF_INPUT)
+      sb.append(c.tokenName()).append(' ');
+    assertEquals("LBR NUM ID RBR LPAR NUM OP NUM RBR ", sb.toString());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void incrementalLexerRejectsModes() {
+    var script = "WS: \\s+\nID: [a-z]+\nQUOTE: \"\nTEXT: [^\"]+\n" +
+        "_MODE_STRING: $TEXT | $QUOTE\n_SWITCH_STRING: $QUOTE\n";
+    var compiler = new DFACompiler();
+    var dfa = compiler.parse(script);
+    // Metadata derived from the graph alone doesn't know about the modes
+    assertFalse(DfaMetadata.analyze(dfa).hasModes());
+    new IncrementalLexer(dfa, DfaMetadata.fromJson(compiler.metadata().toJson(), dfa.graph()));
+  }
+
+  private String describeTokens(String script, String text) {
+    return describeTokens(new DFACompiler(), script, text);
+  }
+
+  /**
+   * Compile a script, and describe the (non-whitespace) tokens it produces
+   * for some text
+   */
+  private String describeTokens(DFACompiler compiler, String script, String text) {
+    var dfa = compiler.parse(script);
+    // Use the compiler's metadata, which (unlike the graph) includes any lexer modes
+    var c = new DfaCursor(dfa, compiler.metadata()).withText(text);
+    var sb = new StringBuilder();
+    while (c.hasNext()) {
+      c.nextToken();
+      if (c.tokenId() != 0)
+        sb.append(c.tokenName()).append(':').append(c.tokenText()).append(' ');
+    }
+    return sb.toString();
+  }
+
   private void verboseRex() {
     DFACompiler.sVerbosity = true;
   }
@@ -4,6 +4,7 @@ import js.data.ByteArray;
 import js.data.DataUtil;
 import js.file.Files;
 import js.geometry.MyMath;
+import js.json.JSMap;
 import js.testutil.MyTestCase;
 
 import static js.base.Tools.*;
@@ -276,6 +277,261 @@ public class LexerTest extends MyTestCase {
     proc();
   }
 
+  @Test
+  public void cursorMatchesLexer() {
+    var text = Files.readString(this.getClass(), "code.txt");
+    withDFA(DFA.parse(JSON_DFA));
+    acceptUnknown();
+    noSkip();
+    var s = lexer();
+    s.withText(text);
+
+    var c = new DfaCursor(dfa()).withText(text);
+    while (s.hasNext()) {
+      var t = s.read();
+      var id = c.nextToken();
+      if (t.id() == Lexeme.ID_UNKNOWN)
+        assertEquals(DfaCursor.ID_UNKNOWN, id);
+      else
+        assertEquals(t.id(), id);
+      assertEquals(t.text(), c.tokenText());
+    }
+    assertFalse(c.hasNext());
+    assertEquals(DfaCursor.ID_END_OF_INPUT, c.nextToken());
+  }
+
+  @Test
+  public void parallelMatchesSequential() {
+    var text = Files.readString(this.getClass(), "code.txt").getBytes(Charset.forName("UTF-8"));
+    var dfa = DFA.parse(JSON_DFA);
+    var tokens = new ParallelTokenizer(dfa).withChunkCount(5).withMinChunkSize(16).tokenize(text);
+
+    var c = new DfaCursor(dfa).withText(text);
+    int i = 0;
+    while (c.hasNext()) {
+      assertEquals(c.nextToken(), tokens.id(i));
+      assertEquals(c.tokenStart(), tokens.start(i));
+      assertEquals(c.tokenEnd(), tokens.end(i));
+      i++;
+    }
+    assertEquals(i, tokens.size());
+  }
+
+  @Test
+  public void tokenBatches() {
+    var text = Files.readString(this.getClass(), "code.txt").getBytes(Charset.forName("UTF-8"));
+    var dfa = DFA.parse(JSON_DFA);
+    var expected = new DfaCursor(dfa).withText(text);
+    var c = new DfaCursor(dfa).withText(text);
+    var batch = new TokenBatch(7).withLines();
+    int line = 0;
+    int linePos = 0;
+    while (c.nextBatch(batch) != 0) {
+      for (int i = 0; i < batch.size(); i++) {
+        assertEquals(expected.nextToken(), batch.ids()[i]);
+        assertEquals(expected.tokenStart(), batch.starts()[i]);
+        assertEquals(expected.tokenLength(), batch.lengths()[i]);
+        for (; linePos < expected.tokenStart(); linePos++)
+          if (text[linePos] == '\n')
+            line++;
+        assertEquals(line, batch.lines()[i]);
+      }
+    }
+    assertFalse(expected.hasNext());
+    assertTrue(line > 0);
+  }
+
+  @Test
+  public void incrementalLexer() {
+    resetSeed(42);
+    var text = Files.readString(this.getClass(), "code.txt").getBytes(Charset.forName("UTF-8"));
+    var lexer = new IncrementalLexer(DFA.parse(JSON_DFA));
+    var tokens = lexer.tokenize(text);
+
+    // Inserting a linefeed before a token should only require its neighbours to be rescanned
+    int pos = tokens.start(tokens.size() / 2);
+    var lf = new byte[text.length + 1];
+    System.arraycopy(text, 0, lf, 0, pos);
+    lf[pos] = '\n';
+    System.arraycopy(text, pos, lf, pos + 1, text.length - pos);
+    var updated = lexer.update(tokens, lf, pos, pos, pos + 1);
+    assertTrue(lexer.rescannedTokenCount() <= 3);
+    assertEquals(lexer.tokenize(lf).size(), updated.size());
+
+    var insertions = List.of("", "x", "\"", " 12.5 ", "\n", "{\"a\":[");
+    for (int i = 0; i < 100; i++) {
+      int start = random().nextInt(text.length + 1);
+      int oldEnd = Math.min(text.length, start + random().nextInt(4));
+      var insert = insertions.get(random().nextInt(insertions.size())).getBytes(Charset.forName("UTF-8"));
+      var edited = new byte[text.length - (oldEnd - start) + insert.length];
+      System.arraycopy(text, 0, edited, 0, start);
+      System.arraycopy(insert, 0, edited, start, insert.length);
+      System.arraycopy(text, oldEnd, edited, start + insert.length, text.length - oldEnd);
+
+      tokens = lexer.update(tokens, edited, start, oldEnd, start + insert.length);
+      text = edited;
+
+      var expected = lexer.tokenize(text);
+      assertEquals(expected.size(), tokens.size());
+      for (int j = 0; j < expected.size(); j++) {
+        assertEquals(expected.id(j), tokens.id(j));
+        assertEquals(expected.start(j), tokens.start(j));
+      }
+    }
+  }
+
+  @Test
+  public void streamingLexer() {
+    resetSeed(7);
+    var text = Files.readString(this.getClass(), "code.txt").getBytes(Charset.forName("UTF-8"));
+    var dfa = DFA.parse(JSON_DFA);
+    var expected = new StringBuilder();
+    var c = new DfaCursor(dfa).withText(text);
+    while (c.hasNext()) {
+      c.nextToken();
+      expected.append(c.tokenId()).append(':').append(c.tokenStart()).append(':').append(c.tokenText()).append('\n');
+    }
+
+    var sb = new StringBuilder();
+    StreamingLexer.Listener listener = (id, offset, buffer, start, length) -> sb.append(id).append(':').append(offset)
+        .append(':').append(new String(buffer, start, length, Charset.forName("UTF-8"))).append('\n');
+    var lexer = new StreamingLexer(dfa, listener);
+    int pos = 0;
+    while (pos < text.length) {
+      int len = Math.min(text.length - pos, random().nextInt(12));
+      lexer.feed(text, pos, len);
+      pos += len;
+      // Occasionally resume with a different lexer, from a snapshot
+      if (random().nextInt(5) == 0) {
+        var snapshot = new JSMap(lexer.snapshot().toString());
+        lexer = new StreamingLexer(dfa, listener).restore(snapshot);
+      }
+    }
+    lexer.finish();
+    assertEquals(expected.toString(), sb.toString());
+  }
+
+  @Test
+  public void cursorFind() {
+    var c = new DfaCursor(dfa()).withText("ccaccb  c");
+    assertEquals(1, c.find());
+    assertEquals(2, c.tokenStart());
+    assertEquals(2, c.find());
+    assertEquals(5, c.tokenStart());
+    assertEquals(0, c.find());
+    assertEquals(6, c.tokenStart());
+    assertEquals(8, c.tokenEnd());
+    assertEquals(DfaCursor.ID_END_OF_INPUT, c.find());
+  }
+
+  @Test
+  public void cursorFindWithoutFirstCodes() {
+    // Metadata from an older .dfa file may lack the first codes; they should be derived from the graph
+    var metadata = DfaMetadata.fromJson(map(), dfa().graph());
+    var c = new DfaCursor(dfa(), metadata).withText("ccaccb  c");
+    assertEquals(1, c.find());
+    assertEquals(2, c.tokenStart());
+    assertEquals(2, c.find());
+    assertEquals(0, c.find());
+    assertEquals(DfaCursor.ID_END_OF_INPUT, c.find());
+  }
+
+  @Test
+  public void deadEnds() {
+    var dfa = DFA.parse(JSON_DFA);
+    var g = dfa.graph();
+    var metadata = DfaMetadata.analyze(dfa);
+
+    // No longer token can follow "true"; but one can follow "1"
+    int state = 0;
+    for (char ch : "true".toCharArray())
+      state = DfaCursor.transition(g, state, ch);
+    assertEquals(4, g[state]);
+    assertTrue(metadata.isDeadEnd(state));
+    assertFalse(metadata.isDeadEnd(DfaCursor.transition(g, 0, '1')));
+
+    // The cursor should stop after "true" without examining the next byte
+    var c = new DfaCursor(dfa, metadata).withText("true12,");
+    assertEquals(3, c.nextToken());
+    assertEquals(4, c.tokenEnd());
+    assertEquals(4, c.scanEnd());
+    assertEquals(11, c.nextToken());
+    assertEquals(6, c.tokenEnd());
+    assertEquals(7, c.scanEnd());
+  }
+
+  @Test
+  public void runSkipper() {
+    resetSeed(1965);
+    // Exit on control characters, quotes and escapes (as within a string), or on non-ASCII bytes
+    var exits = CodeSet.withRange(0, 0x20);
+    exits.add('"');
+    exits.add('\\');
+    exits.add(0x7f);
+    var skipper = new RunSkipper(exits);
+    for (int i = 0; i < 200; i++) {
+      var bytes = new byte[random().nextInt(60)];
+      for (int j = 0; j < bytes.length; j++) {
+        int c = 'a' + random().nextInt(26);
+        if (random().nextInt(40) == 0)
+          c = "\"\\\n\u007f\u0080ÿ".charAt(random().nextInt(6));
+        bytes[j] = (byte) c;
+      }
+      int expected = 0;
+      while (expected < bytes.length && !exits.contains(DfaCursor.charCode(bytes[expected])))
+        expected++;
+      assertEquals(expected, skipper.skip(bytes, 0, bytes.length));
+    }
+  }
+
+  @Test
+  public void hybridGraph() {
+    var dfa = DFA.parse(JSON_DFA);
+    var g = dfa.graph();
+    var hybrid = HybridGraph.encode(g, DfaMetadata.analyze(dfa));
+    int kinds = 0;
+    for (int addr : hybrid.stateAddresses()) {
+      int state = hybrid.offsetOf(addr);
+      kinds |= 1 << hybrid.kind(state);
+      assertEquals((g[addr] & 0xff) - 1, hybrid.acceptedId(state));
+      for (int c = 1; c < Util.MAX_CHAR_CODE; c++) {
+        int dest = DfaCursor.transition(g, addr, c);
+        assertEquals(dest < 0 ? -1 : hybrid.offsetOf(dest), hybrid.next(state, c));
+      }
+    }
+    // Verify that more than one kind of encoding was exercised
+    assertTrue(Integer.bitCount(kinds) > 1);
+  }
+
+  @Test
+  public void startTable() {
+    // The start table is built by the cursor when the DFA is loaded, not stored in the .dfa file
+    var dfa = DFA.parse(JSON_DFA);
+    var metadata = DfaMetadata.analyze(dfa);
+    assertNull(metadata.toJson().optJSList("start_table"));
+
+    var text = Files.readString(this.getClass(), "code.txt");
+    withDFA(dfa);
+    acceptUnknown();
+    noSkip();
+    var s = lexer();
+    s.withText(text);
+    var c = new DfaCursor(dfa, DfaMetadata.fromJson(metadata.toJson(), dfa.graph())).withText(text);
+    while (s.hasNext()) {
+      var t = s.read();
+      var id = c.nextToken();
+      assertEquals(t.id() == Lexeme.ID_UNKNOWN ? DfaCursor.ID_UNKNOWN : t.id(), id);
+      assertEquals(t.text(), c.tokenText());
+    }
+    assertFalse(c.hasNext());
+
+    // A byte with no edge from the start state is the only one examined
+    c.withText("@ 1");
+    assertEquals(DfaCursor.ID_UNKNOWN, c.nextToken());
+    assertEquals(1, c.tokenEnd());
+    assertEquals(1, c.scanEnd());
+  }
+
   @Test
   public void rowsAndColumns() {
     tokens(JSON_DFA);